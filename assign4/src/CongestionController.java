@@ -0,0 +1,16 @@
+// Congestion control policy for the Sender. The controller only decides how
+// many segments may be in flight; the Sender feeds it ACK, RTT and loss events.
+public interface CongestionController {
+    // Congestion window, in segments (always at least one)
+    int window();
+
+    // New data was cumulatively acknowledged; rttNanos is the RTT sample taken
+    // from the ACK, or a negative value if there is none
+    void onAck(int ackedSegments, long rttNanos);
+
+    // Loss detected through duplicate ACKs (fast retransmit)
+    void onDuplicateAckLoss();
+
+    // The oldest outstanding segment timed out
+    void onTimeout();
+}
@@ -0,0 +1,85 @@
+// CUBIC congestion control (RFC 8312). After a loss the window grows along a
+// cubic curve centred on the window size where the loss happened, so it
+// recovers quickly, probes carefully around the old maximum, and then grows
+// quickly again. Below ssthresh it uses the same slow start as Reno.
+public class CubicController implements CongestionController {
+    private static final int INITIAL_WINDOW = 2;
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = Integer.MAX_VALUE;
+    private double wMax = 0;            // Window size just before the last loss
+    private double k = 0;               // Time (s) the cubic curve takes to get back to wMax
+    private long epochStart = -1;       // Start of the current avoidance epoch, in ns
+    private double renoWindow = 0;      // Window standard Reno would have (TCP-friendly region)
+    private long minRtt = Long.MAX_VALUE;
+
+    public int window() {
+        return Math.max(1, (int) this.cwnd);
+    }
+
+    public void onAck(int ackedSegments, long rttNanos) {
+        if (rttNanos > 0) {
+            this.minRtt = Math.min(this.minRtt, rttNanos);
+        }
+        for (int i = 0; i < ackedSegments; i++) {
+            if (this.cwnd < this.ssthresh) {
+                this.cwnd += 1;
+            } else {
+                congestionAvoidance();
+            }
+        }
+    }
+
+    public void onDuplicateAckLoss() {
+        loss();
+        this.cwnd = this.ssthresh;
+    }
+
+    public void onTimeout() {
+        loss();
+        this.cwnd = 1;
+    }
+
+    private void congestionAvoidance() {
+        long now = System.nanoTime();
+        if (this.epochStart < 0) {
+            this.epochStart = now;
+            if (this.cwnd < this.wMax) {
+                this.k = Math.cbrt((this.wMax - this.cwnd) / C);
+            } else {
+                this.k = 0;
+                this.wMax = this.cwnd;
+            }
+            this.renoWindow = this.cwnd;
+        }
+
+        // Where the cubic curve will be one RTT from now
+        double rtt = (this.minRtt == Long.MAX_VALUE) ? 0 : this.minRtt / 1e9;
+        double t = (now - this.epochStart) / 1e9 + rtt;
+        double target = C * Math.pow(t - this.k, 3) + this.wMax;
+
+        // Never grow slower than Reno would
+        this.renoWindow += 3 * (1 - BETA) / (1 + BETA) / this.cwnd;
+        target = Math.max(target, this.renoWindow);
+
+        if (target > this.cwnd) {
+            this.cwnd += Math.min(target - this.cwnd, this.cwnd) / this.cwnd;
+        } else {
+            // Plateau around wMax
+            this.cwnd += 0.01 / this.cwnd;
+        }
+    }
+
+    private void loss() {
+        this.epochStart = -1;
+        // Fast convergence -- give up bandwidth faster if the maximum is shrinking
+        if (this.cwnd < this.wMax) {
+            this.wMax = this.cwnd * (1 + BETA) / 2;
+        } else {
+            this.wMax = this.cwnd;
+        }
+        this.ssthresh = Math.max(this.cwnd * BETA, 2);
+    }
+}
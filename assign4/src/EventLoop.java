@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// A small fixed pool of threads that each drive many connections, instead of
+// every connection running its own receive, send and timer threads. Each
+// loop thread owns a Selector for its connections' sockets and sleeps until
+// one of them is readable or the earliest time-driven deadline (a
+// retransmission timer, a pacing slot) of its connections comes due.
+// Connections are spread over the threads round-robin, and after
+// registration a connection is only ever run by its own thread.
+public class EventLoop {
+    // A connection driven by an event loop; every callback runs on the same loop thread
+    public interface Connection {
+        // Register the connection's socket for reads, with the connection as the key's attachment
+        void register(Selector selector) throws IOException;
+
+        // Handle every datagram that is ready
+        void onReadable() throws IOException;
+
+        // Do any time-driven work that is due. Returns the nanoseconds until it
+        // next needs to run, or -1 if only an inbound packet can give it work.
+        long onTick(long nowNanos);
+
+        // Finished connections are dropped from the loop
+        boolean isDone();
+
+        // A callback threw: give up on the connection and release its socket.
+        // The connection is dropped from the loop; the others carry on.
+        void abort(RuntimeException cause);
+    }
+
+    private static final long SHORT_WAIT_NANOS = 1000000;   // Waits shorter than select()'s 1 ms resolution
+
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    public EventLoop(int threads) throws IOException {
+        this.workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Worker();
+            Thread thread = new Thread(this.workers[i], "event-loop-" + i);
+            // Loop threads never keep the process alive on their own
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Hand a connection to the next loop thread; safe to call from any thread
+    public void register(Connection connection) {
+        int index = Math.floorMod(this.nextWorker.getAndIncrement(), this.workers.length);
+        this.workers[index].add(connection);
+    }
+
+    public void shutdown() {
+        for (Worker worker : this.workers) {
+            worker.running = false;
+            worker.selector.wakeup();
+        }
+    }
+
+    private static class Worker implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+        private final List<Connection> connections = new ArrayList<Connection>();
+        private volatile boolean running = true;
+
+        private Worker() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        private void add(Connection connection) {
+            this.pending.add(connection);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (this.running) {
+                try {
+                    // Channels are registered by the thread that selects on them
+                    Connection connection;
+                    while ((connection = this.pending.poll()) != null) {
+                        connection.register(this.selector);
+                        this.connections.add(connection);
+                    }
+
+                    // Sleep until a socket is readable or the earliest deadline (select() has ms resolution)
+                    long waitNanos = tick();
+                    if (waitNanos == 0) {
+                        this.selector.selectNow();
+                    } else if (waitNanos > 0 && waitNanos < SHORT_WAIT_NANOS) {
+                        // Too short for select() (e.g. a pacing gap): park, then poll the sockets
+                        LockSupport.parkNanos(waitNanos);
+                        this.selector.selectNow();
+                    } else {
+                        this.selector.select(waitNanos < 0 ? 0 : Math.max(1, (waitNanos + 999999) / 1000000));
+                    }
+
+                    for (SelectionKey key : this.selector.selectedKeys()) {
+                        Connection ready = (Connection) key.attachment();
+                        if (!ready.isDone()) {
+                            try {
+                                ready.onReadable();
+                            } catch (RuntimeException e) {
+                                ready.abort(e);
+                                this.connections.remove(ready);
+                            }
+                        }
+                    }
+                    this.selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Run the time-driven work of every connection and drop finished ones.
+        // Returns the nanoseconds until the earliest deadline, or -1 if none.
+        private long tick() {
+            long now = System.nanoTime();
+            long waitNanos = -1;
+            Iterator<Connection> it = this.connections.iterator();
+            while (it.hasNext()) {
+                Connection connection = it.next();
+                long deadline;
+                try {
+                    deadline = connection.onTick(now);
+                } catch (RuntimeException e) {
+                    connection.abort(e);
+                    it.remove();
+                    continue;
+                }
+                if (connection.isDone()) {
+                    it.remove();
+                } else if (deadline >= 0 && (waitNanos < 0 || deadline < waitNanos)) {
+                    waitNanos = deadline;
+                }
+            }
+            return waitNanos;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+// Output file of a transfer, written at explicit offsets rather than
+// appended to, so that the stripes of a multi-stream transfer (each its own
+// connection) can share it. Writes go through a WriteBehind stage; the file
+// is closed once the last connection writing to it releases it and the
+// writes queued before that are done.
+public class OutputFile {
+    private final FileChannel channel;
+    private final WriteBehind writer;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private int references = 1;
+
+    // Open (and empty) the output file of a single-stream transfer
+    public OutputFile(String fileName, WriteBehind writer) throws IOException {
+        this.writer = writer;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Open the output file of a striped transfer of the given total size.
+    // Stripes may open it again after an earlier stripe already finished, so
+    // rather than emptying it, anything past the end of the transfer is cut off.
+    public OutputFile(String fileName, long fileSize, WriteBehind writer) throws IOException {
+        this.writer = writer;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (this.channel.size() > fileSize) {
+            this.channel.truncate(fileSize);
+        }
+    }
+
+    // Queue src's remaining bytes to be written starting at the given file
+    // offset, counted against the writing connection's quota; src may be
+    // reused as soon as this returns
+    public void write(ByteBuffer src, long position, WriteBehind.Quota quota) throws IOException {
+        this.writer.write(this, src, position, quota);
+    }
+
+    // Share of the write-behind queue for a connection writing to this file
+    public WriteBehind.Quota openQuota() {
+        return this.writer.openQuota();
+    }
+
+    public synchronized boolean isOpen() {
+        return this.references > 0;
+    }
+
+    public synchronized void retain() {
+        this.references++;
+    }
+
+    // Drop one reference; the file is closed after its pending writes when it was the last
+    public synchronized void release() throws IOException {
+        if (--this.references == 0) {
+            this.writer.close(this);
+        }
+    }
+
+    // Block until the file has been written out and closed
+    public void awaitClosed() throws InterruptedException {
+        this.closed.await();
+    }
+
+    // Called by the writer thread: one gathering write of count buffers at position
+    void writeNow(ByteBuffer[] srcs, int count, long position) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            remaining += srcs[i].remaining();
+        }
+        this.channel.position(position);
+        while (remaining > 0) {
+            remaining -= this.channel.write(srcs, 0, count);
+        }
+    }
+
+    // Called by the writer thread once every queued write is done
+    void closeNow() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.closed.countDown();
+    }
+}
@@ -0,0 +1,39 @@
+// Spaces transmissions evenly over a round trip (cwnd segments per SRTT)
+// instead of sending a whole window back-to-back. The sender's event loop
+// sleeps until nanosUntilNextSlot() and then sends while due(). Slots are
+// kept on a fixed schedule: when the loop wakes up late (the interval can
+// be shorter than it can sleep), the slots it missed are still due, so the
+// average rate holds.
+public class Pacer {
+    private static final double PACING_GAIN = 1.25;           // Pace slightly faster than cwnd/SRTT so cwnd can grow
+    private static final long MAX_CATCH_UP_NANOS = 1000000;   // Missed slots kept at most this far back (1 ms)
+
+    private long intervalNanos = 0;
+    private long nextSendNanos = 0;
+
+    // Update the pacing rate from the smoothed RTT and congestion window
+    public void setRate(long srttNanos, int cwnd) {
+        if (srttNanos <= 0 || cwnd <= 0) {
+            this.intervalNanos = 0;
+        } else {
+            this.intervalNanos = (long) (srttNanos / (cwnd * PACING_GAIN));
+        }
+    }
+
+    // Record a transmission in the current slot; the next slot is a pacing
+    // interval later. After an idle spell the schedule restarts at most
+    // MAX_CATCH_UP_NANOS back, so a burst is no longer than that.
+    public void recordSend(long nowNanos) {
+        this.nextSendNanos = Math.max(nowNanos - MAX_CATCH_UP_NANOS, this.nextSendNanos) + this.intervalNanos;
+    }
+
+    // Whether a transmission is allowed now
+    public boolean due(long nowNanos) {
+        return nowNanos - this.nextSendNanos >= 0;
+    }
+
+    // Time until the next transmission is allowed, 0 if it is allowed now
+    public long nanosUntilNextSlot(long nowNanos) {
+        return Math.max(0, this.nextSendNanos - nowNanos);
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Holds segments that arrive ahead of the next expected byte until the gap
+// before them is filled. One slot per segment of the sliding window; slot i
+// covers the i-th segment past the next expected byte. A slot's storage is
+// allocated the first time it is used and kept afterwards, so connections
+// that never see reordering only pay for the slot table.
+public class ReassemblyBuffer {
+    private final int segmentSize;
+    private final byte[][] slots;
+    private final int[] lengths;    // Payload held in each slot, 0 if empty
+    private int head = 0;           // Slot of the next expected segment
+    private int heldCount = 0;      // Number of non-empty slots
+
+    public ReassemblyBuffer(int capacity, int segmentSize) {
+        this.segmentSize = segmentSize;
+        this.slots = new byte[Math.max(1, capacity)][];
+        this.lengths = new int[this.slots.length];
+    }
+
+    public int capacity() {
+        return this.slots.length;
+    }
+
+    public int heldCount() {
+        return this.heldCount;
+    }
+
+    // Copy a segment starting offset bytes past the next expected byte into
+    // its slot. Returns false (and holds nothing) if the segment is not
+    // segment aligned or falls outside the window.
+    public boolean hold(int offset, ByteBuffer src, int srcOff, int len) {
+        if (offset <= 0 || offset % this.segmentSize != 0 || len <= 0 || len > this.segmentSize) {
+            return false;
+        }
+        int index = offset / this.segmentSize;
+        if (index >= this.slots.length) {
+            return false;
+        }
+        int slot = (this.head + index) % this.slots.length;
+        if (this.lengths[slot] == 0) {
+            this.heldCount++;
+        }
+        if (this.slots[slot] == null) {
+            this.slots[slot] = new byte[this.segmentSize];
+        }
+        src.get(srcOff, this.slots[slot], 0, len);
+        this.lengths[slot] = len;
+        return true;
+    }
+
+    // Slide past the next expected segment once the caller has consumed it directly
+    public void skip() {
+        release(this.head);
+        this.head = (this.head + 1) % this.slots.length;
+    }
+
+    // Write out the run of held segments at the front of the window, starting
+    // at the given file offset. Returns the number of bytes written.
+    public int flush(OutputFile out, long position, WriteBehind.Quota quota) throws IOException {
+        int written = 0;
+        while (this.lengths[this.head] > 0) {
+            int len = this.lengths[this.head];
+            out.write(ByteBuffer.wrap(this.slots[this.head], 0, len), position + written, quota);
+            written += len;
+            skip();
+            // A short segment is the last one of the stream
+            if (len < this.segmentSize) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    // Held byte ranges, as offsets past the next expected byte. Adjacent
+    // segments are merged; each range is written as a [start, end) pair into
+    // ranges, at most max ranges, and the number of ranges is returned.
+    public int intervals(int[] ranges, int max) {
+        int count = 0;
+        int start = -1;
+        int end = -1;
+        for (int i = 1; i < this.slots.length && this.heldCount > 0; i++) {
+            int len = this.lengths[(this.head + i) % this.slots.length];
+            if (len > 0) {
+                if (start < 0) {
+                    start = i * this.segmentSize;
+                }
+                end = i * this.segmentSize + len;
+            }
+            if (start >= 0 && (len < this.segmentSize || i == this.slots.length - 1)) {
+                if (count == max) {
+                    break;
+                }
+                ranges[2 * count] = start;
+                ranges[2 * count + 1] = end;
+                count++;
+                start = -1;
+            }
+        }
+        return count;
+    }
+
+    private void release(int slot) {
+        if (this.lengths[slot] > 0) {
+            this.lengths[slot] = 0;
+            this.heldCount--;
+        }
+    }
+}
@@ -1,17 +1,28 @@
 import java.io.*;
-import java.lang.reflect.Array;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+import net.floodlightcontroller.packet.Checksum;
+
 public class Receiver {
     private final Object lock = new Object(); // Object for locking shared resources
     // private Timer synAckTimer;
 
-    private static final int HEADER_SIZE = 24;
+    private static final int HEADER_SIZE = SegmentCodec.HEADER_SIZE;
+    private static final int SACK_BLOCK_SIZE = SegmentCodec.SACK_BLOCK_SIZE;
+    private static final int MAX_SACK_BLOCKS = 4;
+    private static final int WRITE_QUEUE_CAPACITY = 4096;   // Segments that may wait for the disk
+    private static final long DEFAULT_ACK_DELAY_NANOS = 40000000; // Longest an ACK is held back (40 ms)
+    private static final long ACK_TIMER_TICK_NANOS = 1000000;     // Delayed ACK timer resolution (1 ms)
+    private static final long WINDOW_CHECK_NANOS = 1000000;       // How often a closed window is rechecked (1 ms)
+
+    // Fires the delayed ACK timers on a wheel shared by several receivers
+    public static final TimingWheel.Handler ACK_TIMERS = (timeout) -> ((AckTimer) timeout).fire();
 
-    private static final int ACK = 0b001;
-    private static final int SYNACK = 0b101;
-    private static final int FINACK = 0b011;
+    private static final int ACK = SegmentCodec.ACK;
+    private static final int SYNACK = SegmentCodec.SYN | SegmentCodec.ACK;
+    private static final int FINACK = SegmentCodec.FIN | SegmentCodec.ACK;
 
     // Variables to track statistics
     private int totalDataTransferred = 0;
@@ -27,32 +38,116 @@ public class Receiver {
     private int mtu;
     private int remotePort;
     private int sws;
-    private DatagramSocket socket;
+    private Transport transport;
     private InetAddress remoteAddress;
-    private byte[] buffer;
-    private FileOutputStream fileOutputStream;
+    private InetSocketAddress remoteSocketAddress;
+    private ByteBuffer sendBuffer;  // Every outgoing packet is built here in place
+    private OutputFile output;
+    private WriteBehind.Quota writeQuota;   // This connection's share of the write-behind queue
+    private long fileOffset = 0;    // File offset of the first data byte (non-zero for a stripe)
+    private ReassemblyBuffer reassemblyBuffer;
+    private int[] sackRanges = new int[2 * MAX_SACK_BLOCKS];
+
+    // Header views for packets being handled and sent
+    private final SegmentCodec inbound = new SegmentCodec();
+    private final SegmentCodec outbound = new SegmentCodec();
+
+    // A standalone receiver exits the process once its transfer is done; a
+    // connection of a ReceiverServer just closes and leaves the process running
+    private boolean exitOnFin = true;
+    private long closedAt = 0;      // Time the connection was closed, 0 while open
+    private long lastReceived;      // Time the last datagram was received
+
+    // Delayed ACKs: in-order segments are acknowledged in pairs, or when the
+    // timer runs out for a lone one, unless the sender or our own window
+    // leaves no room for a second. A delay of 0 ACKs every segment at once.
+    private long ackDelayNanos = DEFAULT_ACK_DELAY_NANOS;
+    private TimingWheel ackTimers;
+    private final AckTimer ackTimer = new AckTimer();
+    private int pendingAcks = 0;            // Segments received but not acknowledged yet
+    private long pendingAckTimestamp;       // Timestamp of the oldest of them, echoed by the ACK
+
+    // Binary segment log; segments are printed as text when null
+    private SegmentTrace trace;
+
+    // Set while the last ACK advertised a zero window; the sender then waits
+    // for an update, sent as soon as this connection's share of the
+    // write-behind queue has room again
+    private boolean windowClosed = false;
+
+    private class AckTimer extends TimingWheel.Timeout {
+        private void fire() {
+            synchronized (lock) {
+                if (isClosed()) {
+                    return;
+                }
+                if (pendingAcks > 0 || (windowClosed && advertisedWindow() > 0)) {
+                    sendAck();
+                } else if (windowClosed) {
+                    ackTimers.schedule(this, WINDOW_CHECK_NANOS, System.nanoTime());
+                }
+            }
+        }
+    }
 
     public Receiver(int p, int m, int s, String fname) {
         this.port = p;
-        this.mtu = m;
-        this.sws = s;
-        this.buffer = new byte[mtu];
+        init(m, s);
+        this.ackTimers = new TimingWheel(ACK_TIMER_TICK_NANOS, System.nanoTime());
 
         try {
-            this.socket = new DatagramSocket(port);
-        } catch (SocketException e) {
+            this.transport = new Transport(port, mtu);
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
         try {
-            File file = new File(fname);
-            file.createNewFile();
-            this.fileOutputStream = new FileOutputStream(file);
+            this.output = new OutputFile(fname, new WriteBehind(mtu - HEADER_SIZE, WRITE_QUEUE_CAPACITY));
+            this.writeQuota = this.output.openQuota();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // One connection of a ReceiverServer, sharing the server's transport. The
+    // output file may be shared with the other stripes of the same transfer.
+    public Receiver(Transport transport, InetSocketAddress remote, int m, int s, OutputFile output) {
+        this.port = transport.getLocalPort();
+        this.transport = transport;
+        this.output = output;
+        this.writeQuota = output.openQuota();
+        this.exitOnFin = false;
+        this.lastReceived = System.currentTimeMillis();
+        setRemote(remote);
+        init(m, s);
+    }
+
+    // Log segments to a binary trace instead of printing a line for each
+    public void setTrace(SegmentTrace trace) {
+        this.trace = trace;
+    }
+
+    // Hold back ACKs of in-order data by up to delayNanos (0 turns delayed ACKs off)
+    public void setAckDelay(long delayNanos) {
+        this.ackDelayNanos = delayNanos;
+    }
+
+    // Run the delayed ACK timer on a wheel shared with other connections; the
+    // caller advances it with ACK_TIMERS from the thread that handles this
+    // connection's packets. Connections of a ReceiverServer have no wheel of
+    // their own and must be given one.
+    public void setAckTimers(TimingWheel timers) {
+        this.ackTimers = timers;
+    }
+
+    private void init(int m, int s) {
+        this.mtu = m;
+        this.sws = s;
+        this.sendBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + MAX_SACK_BLOCKS * SACK_BLOCK_SIZE);
+        // Out-of-order segments are held for up to one window past the next expected byte
+        this.reassemblyBuffer = new ReassemblyBuffer(sws, mtu - HEADER_SIZE);
+    }
+
     /*
      * STARTUP CODE
      */
@@ -69,19 +164,31 @@ public class Receiver {
 
         System.out.println("[REC] Handshake complete, ready to receive data...");
         Thread receiverThread = new Thread(() -> {
+            Transport.Handler handler = (datagram, from) -> {
+                // Only the sender we shook hands with is served (the stripes of a
+                // multi-stream transfer need a ReceiverServer)
+                if (!from.equals(this.remoteSocketAddress)) {
+                    return;
+                }
+
+                // Handle inbound packet straight out of the receive buffer
+                this.receive(datagram);
+            };
+
             // Receive forever (until we get a FIN)
             while (true) {
                 try {
-                    // Receive a TCP Packet (for handshake)
-                    DatagramPacket inboundPacket = new DatagramPacket(this.buffer, this.buffer.length);
-                    this.socket.receive(inboundPacket); // blocking!
-                    
-                    this.remoteAddress = inboundPacket.getAddress();
-                    this.remotePort = inboundPacket.getPort();
-
-                    this.totalDataReceived += extractLength(inboundPacket.getData());
-                    // Handle inbound packet
-                    this.handlePacket(inboundPacket.getData());
+                    // Wait for packets (or the delayed ACK timer), then handle every
+                    // one that is ready under one lock acquisition
+                    long waitMillis;
+                    synchronized (lock) {
+                        waitMillis = this.ackTimers.millisUntilNextEvent(System.nanoTime());
+                    }
+                    this.transport.await(waitMillis);
+                    synchronized (lock) {
+                        this.transport.drain(handler);
+                        this.ackTimers.advance(System.nanoTime(), ACK_TIMERS);
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -93,17 +200,22 @@ public class Receiver {
 
     private boolean handshake() {
         try {
-            DatagramPacket synPacket = new DatagramPacket(this.buffer, this.buffer.length);
-            this.socket.receive(synPacket); // blocking !
+            ByteBuffer synPacket = this.transport.receive(0); // blocking !
             synchronized (lock) {
                 // Expect a SYN-ACK packet
-                this.remoteAddress = synPacket.getAddress();
-                this.remotePort = synPacket.getPort();
+                setRemote(this.transport.getLastSource());
 
-                if (extractSYNFlag(synPacket.getData())) {
+                if (!this.inbound.wrap(synPacket).isComplete(synPacket.limit())) {
+                    System.out.println("Handshake Failed -- received a truncated packet.");
+                    return false;
+                } else if (this.inbound.wrap(synPacket).hasStreamOption(synPacket.limit())) {
+                    // One stripe alone would leave holes in the file
+                    System.out.println("Handshake Failed -- multi-stream transfers need a receiver started with -d.");
+                    return false;
+                } else if (this.inbound.wrap(synPacket).isSyn()) {
                     // Only init connection if the syn packet's seq num is 0
-                    if(extractSequenceNumber(synPacket.getData()) == 0) {
-                        this.handlePacket(synPacket.getData());
+                    if(this.inbound.wrap(synPacket).sequenceNumber() == 0) {
+                        this.handlePacket(synPacket);
                     } else {
                         System.out.println("Handshake Failed -- received SYN packet with non-zero sequence number.");
                         return false;
@@ -114,30 +226,32 @@ public class Receiver {
                 }
             }
 
-            DatagramPacket ackPacket = new DatagramPacket(this.buffer, this.buffer.length);
-            this.socket.receive(ackPacket); // blocking !
+            ByteBuffer ackPacket = receiveFromRemote(); // blocking !
 
             synchronized (lock) {
-                if (extractACKFlag(ackPacket.getData())) {
+                if (!this.inbound.wrap(ackPacket).isComplete(ackPacket.limit())) {
+                    System.out.println("Handshake Failed -- received a truncated packet.");
+                    return false;
+                } else if (this.inbound.wrap(ackPacket).isAck()) {
                     // Make sure the ack number is correct (seqNum + 1)
-                    if (this.extractAcknowledgmentNumber(ackPacket.getData()) == this.sequenceNumber + 1) {
-                        this.handlePacket(ackPacket.getData());
+                    if (this.inbound.wrap(ackPacket).acknowledgmentNumber() == this.sequenceNumber + 1) {
+                        this.handlePacket(ackPacket);
                     }
-                } else if (extractSYNFlag(ackPacket.getData())) {
+                } else if (this.inbound.wrap(ackPacket).isSyn()) {
                     // This means our Syn ack was dropped and the sender resent the syn -- we have to rehandle
-                    this.ackNumber -= 1;
                     // Only init connection if the syn packet's seq num is 0
-                    if(extractSequenceNumber(synPacket.getData()) == 0) {
-                        this.handlePacket(synPacket.getData());
+                    if(this.inbound.wrap(ackPacket).sequenceNumber() == 0) {
+                        this.handlePacket(ackPacket);
                     } else {
                         System.out.println("Handshake Failed -- received SYN packet with non-zero sequence number.");
                         return false;
                     }
-                    this.socket.receive(ackPacket); // blocking !
-                    if (extractACKFlag(ackPacket.getData())) {
+                    ackPacket = receiveFromRemote(); // blocking !
+                    if (this.inbound.wrap(ackPacket).isComplete(ackPacket.limit())
+                            && this.inbound.wrap(ackPacket).isAck()) {
                         // Make sure the ack number is correct (seqNum + 1)
-                        if (this.extractAcknowledgmentNumber(ackPacket.getData()) == this.sequenceNumber + 1) {
-                            this.handlePacket(ackPacket.getData());
+                        if (this.inbound.wrap(ackPacket).acknowledgmentNumber() == this.sequenceNumber + 1) {
+                            this.handlePacket(ackPacket);
                         }
                     } else {
                         System.out.println("Handshake Failed -- did not receive correct ACK from sender.");
@@ -160,20 +274,38 @@ public class Receiver {
         return false;
     }
 
+    // Wait for the next datagram from the sender being shaken hands with,
+    // ignoring any other
+    private ByteBuffer receiveFromRemote() throws IOException {
+        while (true) {
+            ByteBuffer datagram = this.transport.receive(0);
+            if (this.transport.getLastSource().equals(this.remoteSocketAddress)) {
+                return datagram;
+            }
+        }
+    }
+
     
     private void sendPacket(int flagNum, String flagList, long timeStamp) {
         synchronized (lock) {
-            byte[] dataPkt = new byte[HEADER_SIZE];
-
-            byte[] hdr = createHeader(0, flagNum, timeStamp);
-            // System.out.println(hdr);
-
-            System.arraycopy(hdr, 0, dataPkt, 0, HEADER_SIZE);
-
-            int checksum = getChecksum(dataPkt);
+            // Plain ACKs carry SACK blocks for the data held past the cumulative ack
+            int sackCount = (flagNum == ACK) ? this.reassemblyBuffer.intervals(this.sackRanges, MAX_SACK_BLOCKS) : 0;
+
+            // Build the packet in place in the reusable send buffer
+            ByteBuffer dataPkt = this.sendBuffer;
+            dataPkt.clear();
+            dataPkt.limit(HEADER_SIZE + sackCount * SACK_BLOCK_SIZE);
+
+            SegmentCodec header = this.outbound.wrap(dataPkt, 0);
+            header.writeHeader(this.sequenceNumber, this.ackNumber, timeStamp, 0, flagNum);
+            int window = advertisedWindow();
+            header.setWindow(window);
+            this.windowClosed = (window == 0);
+            for (int i = 0; i < sackCount; i++) {
+                header.writeSackBlock(i, this.ackNumber + this.sackRanges[2 * i], this.ackNumber + this.sackRanges[2 * i + 1]);
+            }
 
-            dataPkt[22] = (byte) (checksum & 0xFF);
-            dataPkt[23] = (byte) ((checksum >> 8) & 0xFF);
+            header.setChecksum(Checksum.compute(dataPkt, 0, dataPkt.limit()));
 
             try {
                 sendUDPPacket(dataPkt, flagList, this.sequenceNumber);
@@ -183,22 +315,100 @@ public class Receiver {
         }
     }
 
+    // Segments the sender may send past the cumulative ack: no more than the
+    // reassembly buffer holds, nor than this connection's share of the
+    // write-behind queue can take before handling packets would have to wait
+    // for the disk (connections of a ReceiverServer share one queue)
+    private int advertisedWindow() {
+        return Math.min(this.reassemblyBuffer.capacity(), this.writeQuota.remaining());
+    }
+
+    // Remember where the sender is; replies go back to the address and port it sent from
+    private void setRemote(InetSocketAddress from) {
+        if (!from.equals(this.remoteSocketAddress)) {
+            this.remoteAddress = from.getAddress();
+            this.remoteSocketAddress = from;
+        }
+        this.remotePort = from.getPort();
+    }
+
+    public InetSocketAddress getRemote() {
+        return this.remoteSocketAddress;
+    }
+
+    public boolean isClosed() {
+        return this.closedAt != 0;
+    }
+
+    // Time the connection was closed (by the sender's FIN, or given up on), 0 while open
+    public long getClosedAt() {
+        return this.closedAt;
+    }
+
+    public long getLastReceived() {
+        return this.lastReceived;
+    }
+
+    // Handle one inbound datagram. Connections of a ReceiverServer have no
+    // blocking handshake, so they are set up here by the packets themselves.
+    public void receive(ByteBuffer datagram) {
+        synchronized (lock) {
+            SegmentCodec segment = this.inbound.wrap(datagram);
+            if (!segment.isComplete(datagram.limit())) {
+                // Truncated or garbled
+                return;
+            }
+            this.lastReceived = System.currentTimeMillis();
+            if (isClosed() && !segment.isFin()) {
+                // Late data for a finished transfer
+                return;
+            }
+            // The first ACK of our SYN-ACK (or data carrying it) completes the handshake
+            if (this.sequenceNumber == 0 && segment.isAck() && !segment.isSyn()
+                    && segment.acknowledgmentNumber() == 1) {
+                this.sequenceNumber = 1;
+            }
+            this.totalDataReceived += segment.length();
+            this.handlePacket(datagram);
+        }
+    }
+
+    // Close the connection without waiting for the sender's FIN
+    public void abort() {
+        synchronized (lock) {
+            if (!isClosed()) {
+                close();
+            }
+        }
+    }
+
+    // Release the output file once the transfer is done
+    private void close() {
+        this.closedAt = System.currentTimeMillis();
+        this.writeQuota.close();
+        try {
+            this.output.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // Method to send UDP packet
-    private void sendUDPPacket(byte[] data, String flagList, int sequenceNumber) throws IOException {
-        // DatagramPacket packet = new DatagramPacket(data, data.length, this.remoteAddress, this.remotePort);
-        DatagramPacket packet = new DatagramPacket(data, data.length, this.remoteAddress, this.port);
-        this.socket.send(packet);
+    private void sendUDPPacket(ByteBuffer data, String flagList, int sequenceNumber) throws IOException {
+        this.transport.send(data, this.remoteSocketAddress);
 
         // Book-Keeping
+        int length = this.outbound.wrap(data, 0).length();
         this.totalPacketsSent += 1;
-        this.totalDataTransferred += extractLength(data);
+        this.totalDataTransferred += length;
 
         // Output information about the sent packet
-        outputSegmentInfo("snd", flagList, this.sequenceNumber, extractLength(data), this.ackNumber);
+        outputSegmentInfo("snd", flagList, this.sequenceNumber, length, this.ackNumber);
     }
 
-    private void handlePacket(byte[] recvPacketData) {
+    private void handlePacket(ByteBuffer recvPacketData) {
         synchronized (lock) {
+            SegmentCodec segment = this.inbound.wrap(recvPacketData);
             this.totalPacketsReceived += 1;
             // this.totalDataReceived += extractLength(recvPacketData);
 
@@ -206,76 +416,138 @@ public class Receiver {
             int flagNum = 0;
 
             // SYN
-            if(extractSYNFlag(recvPacketData)) {
+            if(segment.isSyn()) {
                 flagList = "S - - -";
 
-                this.outputSegmentInfo("rcv", flagList, extractSequenceNumber(recvPacketData), extractLength(recvPacketData), extractAcknowledgmentNumber(recvPacketData));
+                this.outputSegmentInfo("rcv", flagList, segment.sequenceNumber(), segment.length(), segment.acknowledgmentNumber());
 
-                // Update ack num
-                // this.ackNumber = this.extractSequenceNumber(recvPacketData) + 1;
-                this.ackNumber += 1;
+                // A stripe of a multi-stream transfer starts part way into the file
+                if (segment.hasStreamOption(recvPacketData.limit())) {
+                    this.fileOffset = segment.streamFileOffset();
+                }
+
+                // Update ack num (a repeated SYN gets the same SYN-ACK again)
+                this.ackNumber = segment.sequenceNumber() + 1;
                 
                 // Respond with a SYN-ACK
                 flagList = "S A - -";
                 flagNum = SYNACK;
     
-                this.sendPacket(flagNum, flagList, extractTimestamp(recvPacketData));
+                this.sendPacket(flagNum, flagList, segment.timestamp());
             } // FIN
-            else if (extractFINFlag(recvPacketData)) {
+            else if (segment.isFin()) {
                 flagList = "- - F -";
 
-                this.outputSegmentInfo("rcv", flagList, extractSequenceNumber(recvPacketData), extractLength(recvPacketData), extractAcknowledgmentNumber(recvPacketData));
+                this.outputSegmentInfo("rcv", flagList, segment.sequenceNumber(), segment.length(), segment.acknowledgmentNumber());
+
+                // A repeated FIN means our FIN-ACK was lost; just acknowledge it again
+                boolean repeated = isClosed();
+
+                // The FIN-ACK covers any delayed ACK
+                this.ackTimer.cancel();
+                this.pendingAcks = 0;
 
                 // Update ack num
                 // this.ackNumber = this.extractSequenceNumber(recvPacketData) + 1;
-                this.ackNumber += 1;
+                if (!repeated) {
+                    this.ackNumber += 1;
+                }
                 
                 // Respond with a FIN-ACK
                 flagList = "- A F -";
                 flagNum = FINACK;
     
-                this.sendPacket(flagNum, flagList, extractTimestamp(recvPacketData));
-
-                printStatistics();
-
-                // Successfully exit
-                System.exit(1);
+                this.sendPacket(flagNum, flagList, segment.timestamp());
+
+                if (!repeated) {
+                    printStatistics();
+                    close();
+
+                    if (this.exitOnFin) {
+                        // Let the write-behind stage finish the file, then successfully exit
+                        try {
+                            this.output.awaitClosed();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                        System.exit(1);
+                    }
+                }
             } // ACK (not ACK DATA)
-            else if (extractACKFlag(recvPacketData) && (extractLength(recvPacketData) == 0)) {
+            else if (segment.isAck() && (segment.length() == 0)) {
                 flagList = "- A - -";
 
-                this.outputSegmentInfo("rcv", "- A - -", extractSequenceNumber(recvPacketData), extractLength(recvPacketData), extractAcknowledgmentNumber(recvPacketData));
+                this.outputSegmentInfo("rcv", "- A - -", segment.sequenceNumber(), segment.length(), segment.acknowledgmentNumber());
             } // DATA 
             else {
                 flagList = "- A - D";
 
-                this.outputSegmentInfo("rcv", flagList, extractSequenceNumber(recvPacketData), extractLength(recvPacketData), extractAcknowledgmentNumber(recvPacketData));
+                this.outputSegmentInfo("rcv", flagList, segment.sequenceNumber(), segment.length(), segment.acknowledgmentNumber());
 
                 // Only update ackNumber if received packet is continuous
-                int recvSeqNum = this.extractSequenceNumber(recvPacketData);
-                if (recvSeqNum == this.ackNumber) {
-                    this.ackNumber += this.extractLength(recvPacketData);
+                int recvSeqNum = segment.sequenceNumber();
+                int recvLength = segment.length();
+                boolean ackNow;
+                if (recvSeqNum == this.ackNumber && advertisedWindow() == 0) {
+                    // No room left in our share of the write-behind queue (e.g. a
+                    // zero-window probe): writing would block on the disk, holding up
+                    // every connection. Drop the segment and repeat the zero window.
+                    ackNow = true;
+                } else if (recvSeqNum == this.ackNumber) {
+                    // ACK at once when this fills a gap, for a short (i.e. the last)
+                    // segment, or when the sender can send no more until it hears from us
+                    ackNow = this.reassemblyBuffer.heldCount() > 0 || recvLength < this.mtu - HEADER_SIZE
+                            || segment.window() == 0;
+                    this.ackNumber += recvLength;
                     try {
-                        synchronized(lock) {
-                            // Only write consecutive data
-                            this.fileOutputStream.write(extractPayload(recvPacketData));
-                        }
+                        // Write consecutive data straight from the datagram, then any held
+                        // segments the gap was blocking
+                        recvPacketData.limit(HEADER_SIZE + recvLength).position(HEADER_SIZE);
+                        this.output.write(recvPacketData, this.fileOffset + recvSeqNum - 1, this.writeQuota);
+                        this.reassemblyBuffer.skip();
+                        this.ackNumber += this.reassemblyBuffer.flush(this.output, this.fileOffset + this.ackNumber - 1,
+                                this.writeQuota);
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                 } else {
+                    // Out-of-order and duplicate segments are acknowledged at once (the
+                    // sender counts duplicate ACKs and reads the SACK blocks)
+                    ackNow = true;
                     totalOutOfSequencePackets++;
+                    // Hold data that arrived early until the gap before it is filled
+                    this.reassemblyBuffer.hold(recvSeqNum - this.ackNumber, recvPacketData, HEADER_SIZE, recvLength);
                 }
 
-                // Respond with ACK
-                flagList = "- A - -";
-                flagNum = ACK;
-
-                this.sendPacket(flagNum, flagList, extractTimestamp(recvPacketData));
+                // Respond with ACK -- every second segment (every one when our
+                // window is that small), or on the timer for a lone one
+                if (this.pendingAcks == 0) {
+                    this.pendingAckTimestamp = segment.timestamp();
+                }
+                this.pendingAcks++;
+                if (ackNow || this.ackDelayNanos <= 0 || this.pendingAcks >= Math.min(2, advertisedWindow())) {
+                    sendAck();
+                } else {
+                    this.ackTimers.schedule(this.ackTimer, this.ackDelayNanos, System.nanoTime());
+                }
             }
         }
     }
 
+    // Acknowledge everything received so far, echoing the timestamp of the
+    // oldest segment that was not acknowledged yet
+    private void sendAck() {
+        this.ackTimer.cancel();
+        this.pendingAcks = 0;
+
+        this.sendPacket(ACK, "- A - -", this.pendingAckTimestamp);
+
+        // Watch a closed window so the sender hears when it opens
+        if (this.windowClosed) {
+            this.ackTimers.schedule(this.ackTimer, WINDOW_CHECK_NANOS, System.nanoTime());
+        }
+    }
+
     /*
      * MISC.
      */
@@ -292,136 +564,13 @@ public class Receiver {
 
     // Method to output segment information
     private void outputSegmentInfo(String action, String flagList, int sequenceNumber, int numBytes, int ackNumber) {
+        if (this.trace != null) {
+            int direction = action.equals("snd") ? SegmentTrace.SEND : SegmentTrace.RECEIVE;
+            this.trace.record(System.nanoTime(), direction, SegmentTrace.flagBits(flagList), sequenceNumber, numBytes,
+                    ackNumber);
+            return;
+        }
         System.out.printf("%s %d %s %d %d %d\n", action, System.nanoTime(), flagList, sequenceNumber, numBytes,
                 ackNumber);
     }
-
-    private byte[] createHeader(int length, int afs, long timeStamp) {
-        // seqnum and acknum are globals, get length and afs from cmd line
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-
-        try {
-            // Create a DataOutputStream to write data to the ByteArrayOutputStream
-            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-
-            // Write different data types to the byte array
-            dataOutputStream.writeInt(this.sequenceNumber);
-            dataOutputStream.writeInt(this.ackNumber);
-            dataOutputStream.writeLong(timeStamp);
-            dataOutputStream.writeInt((length << 3) | afs); // Corrected the order of bit shifting
-            dataOutputStream.writeInt(0);
-
-            // Close the DataOutputStream
-            dataOutputStream.close();
-
-            // Get the byte array
-            byte[] byteArray = byteArrayOutputStream.toByteArray();
-
-            int checksum = getChecksum(byteArray);
-
-            // should these be flipped? i.e. byte 23 gets first byte of checksum
-            byteArray[22] = (byte) (checksum & 0xFF);
-            byteArray[23] = (byte) ((checksum >> 8) & 0xFF);
-
-            return byteArray;
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null; // is this fine?
-        }
-
-    }
-
-    private int getChecksum(byte[] data) {
-        int sum = 0;
-        int carry = 0;
-
-        // Pad the data with 0x00 if the length is odd
-        byte[] paddedData = data.length % 2 == 0 ? data : Arrays.copyOf(data, data.length + 1);
-
-        // Calculate the sum of 16-bit segments
-        for (int i = 0; i < paddedData.length; i += 2) {
-            int segment = ((paddedData[i] & 0xFF) << 8) | (paddedData[i + 1] & 0xFF);
-            sum += segment;
-            if ((sum & 0xFFFF0000) != 0) {
-                sum &= 0xFFFF;
-                carry++;
-            }
-        }
-
-        // Add carry to the least significant bit
-        while (carry > 0) {
-            sum++;
-            if ((sum & 0xFFFF0000) != 0) {
-                sum &= 0xFFFF;
-                carry++;
-            } else {
-                break;
-            }
-        }
-
-        // Flip all 16 bits to get the checksum
-        return ~sum & 0xFFFF;
-    }
-
-    private byte[] extractPayload(byte[] packet){
-        int dataLen = extractLength(packet);
-        byte[] data = new byte[dataLen];
-        System.arraycopy(packet, 24, data, 0, dataLen);
-
-        return data;
-    }
-
-    private int extractSequenceNumber(byte[] header) {
-        return (header[0] & 0xFF) << 24 |
-               (header[1] & 0xFF) << 16 |
-               (header[2] & 0xFF) << 8 |
-               (header[3] & 0xFF);
-    }
-
-    private int extractAcknowledgmentNumber(byte[] header) {
-        return (header[4] & 0xFF) << 24 |
-               (header[5] & 0xFF) << 16 |
-               (header[6] & 0xFF) << 8 |
-               (header[7] & 0xFF);
-    }
-
-    private long extractTimestamp(byte[] header) {
-        return (long)(header[8] & 0xFF) << 56 |
-               (long)(header[9] & 0xFF) << 48 |
-               (long)(header[10] & 0xFF) << 40 |
-               (long)(header[11] & 0xFF) << 32 |
-               (long)(header[12] & 0xFF) << 24 |
-               (long)(header[13] & 0xFF) << 16 |
-               (long)(header[14] & 0xFF) << 8 |
-               (long)(header[15] & 0xFF);
-    }
-
-    private int extractLength(byte[] header) {
-        return (header[16] & 0xFF) << 21 |
-               (header[17] & 0xFF) << 13 |
-               (header[18] & 0xFF) << 5 |
-               ((header[19] >> 3) & 0x1F);
-    }
-
-    private int extractChecksum(byte[] header) {
-        return (header[20] & 0xFF) << 8 |
-               (header[21] & 0xFF);
-    }
-
-    private boolean extractACKFlag(byte[] header) {
-        return ((header[19]) & 0x1) == 1;
-    }
-
-    private boolean extractFINFlag(byte[] header) {
-        return ((header[19] >> 1) & 0x1) == 1;
-    }
-
-    private boolean extractSYNFlag(byte[] header) {
-        return ((header[19] >> 2) & 0x1) == 1;
-    }
-
-    private boolean extractDATAFlag(byte[] header) {
-        return ((header[19] >> 2) & 0x1) == 1;
-    }
 }
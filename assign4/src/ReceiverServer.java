@@ -0,0 +1,173 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Long-running receiver that accepts any number of concurrent transfers on
+// one port. Datagrams are demultiplexed by the sender's (address, port) into
+// per-connection Receiver state, all sharing a single transport. A
+// connection is created by its SYN and forgotten a while after its FIN, so a
+// lost FIN-ACK can still be repeated; one whose sender has gone quiet is
+// closed after an idle timeout, releasing its output file. Each transfer is written to
+// "<file name>.<sender address>_<sender port>"; the stripes of a
+// multi-stream transfer share "<file name>.<sender address>_<transfer id>",
+// each writing its own byte range.
+public class ReceiverServer {
+    private static final long LINGER_MILLIS = 2000;    // Keep closed connections around this long
+    private static final long IDLE_MILLIS = 120000;    // Close open connections that send nothing for this long
+    private static final int WRITE_QUEUE_CAPACITY = 16384;  // Segments that may wait for the disk
+
+    private final int port;
+    private final int mtu;
+    private final int sws;
+    private final String fileName;
+    private Transport transport;
+    private WriteBehind writer;     // Shared by the output files of every connection
+    private SegmentTrace trace;     // Shared binary segment log, or null to print segments
+    private long ackDelayNanos = -1;    // Delayed ACK setting for new connections (-1: Receiver's default)
+    // Delayed ACK timers of every connection
+    private final TimingWheel ackTimers = new TimingWheel(1000000, System.nanoTime());
+
+    // Connection table, keyed by the sender's address
+    private final Map<InetSocketAddress, Receiver> connections = new HashMap<>(1024);
+    // Closed connections, oldest first, waiting to be dropped from the table
+    private final ArrayDeque<Receiver> closing = new ArrayDeque<>();
+    // Output files of striped transfers, by file name
+    private final Map<String, OutputFile> stripedFiles = new HashMap<>();
+    private long nextIdleCheck = 0;     // When to next look for idle connections
+
+    private final SegmentCodec inbound = new SegmentCodec();
+
+    public ReceiverServer(int p, int m, int s, String fname) {
+        this.port = p;
+        this.mtu = m;
+        this.sws = s;
+        this.fileName = fname;
+        this.writer = new WriteBehind(mtu - SegmentCodec.HEADER_SIZE, WRITE_QUEUE_CAPACITY);
+
+        try {
+            this.transport = new Transport(port, mtu);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setAckDelay(long delayNanos) {
+        this.ackDelayNanos = delayNanos;
+    }
+
+    public void setTrace(SegmentTrace trace) {
+        this.trace = trace;
+    }
+
+    public void start() {
+        System.out.println("[REC] Listening on port " + this.port + " for any number of transfers...");
+        Thread serverThread = new Thread(() -> {
+            Transport.Handler handler = this::dispatch;
+
+            while (true) {
+                try {
+                    // Wake up for the next delayed ACK, and at least every linger
+                    // period to drop closed connections
+                    long ackMillis = this.ackTimers.millisUntilNextEvent(System.nanoTime());
+                    this.transport.await(ackMillis == 0 ? LINGER_MILLIS : Math.min(ackMillis, LINGER_MILLIS));
+                    this.transport.drain(handler);
+                    this.ackTimers.advance(System.nanoTime(), Receiver.ACK_TIMERS);
+                    expire(System.currentTimeMillis());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        serverThread.start();
+    }
+
+    // Hand a datagram to its connection, opening one for a new sender's SYN
+    private void dispatch(ByteBuffer datagram, InetSocketAddress from) {
+        SegmentCodec segment = this.inbound.wrap(datagram);
+        if (!segment.isComplete(datagram.limit())) {
+            // Truncated or garbled
+            return;
+        }
+
+        Receiver connection = this.connections.get(from);
+        if (connection == null) {
+            if (!segment.isSyn() || segment.sequenceNumber() != 0) {
+                // Stray packet of a connection we never saw (or already dropped)
+                return;
+            }
+            OutputFile output;
+            try {
+                output = openOutput(segment, datagram.limit(), from);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            connection = new Receiver(this.transport, from, this.mtu, this.sws, output);
+            connection.setAckTimers(this.ackTimers);
+            connection.setTrace(this.trace);
+            if (this.ackDelayNanos >= 0) {
+                connection.setAckDelay(this.ackDelayNanos);
+            }
+            this.connections.put(from, connection);
+            System.out.println("[REC] Accepted connection from " + from + " (" + this.connections.size() + " open)");
+        }
+
+        boolean wasClosed = connection.isClosed();
+        try {
+            connection.receive(datagram);
+        } catch (RuntimeException e) {
+            // Only this connection is broken; keep serving the others
+            e.printStackTrace();
+            connection.abort();
+        }
+        if (!wasClosed && connection.isClosed()) {
+            this.closing.add(connection);
+        }
+    }
+
+    // Output file for a new connection; the stripes of a multi-stream transfer
+    // (same sender address and transfer id) all share one
+    private OutputFile openOutput(SegmentCodec syn, int datagramLength, InetSocketAddress from) throws IOException {
+        String address = from.getAddress().getHostAddress();
+        if (!syn.hasStreamOption(datagramLength)) {
+            return new OutputFile(this.fileName + "." + address + "_" + from.getPort(), this.writer);
+        }
+
+        String name = this.fileName + "." + address + "_" + syn.streamTransferId();
+        OutputFile output = this.stripedFiles.get(name);
+        if (output != null && output.isOpen()) {
+            output.retain();
+            return output;
+        }
+        output = new OutputFile(name, syn.streamFileSize(), this.writer);
+        this.stripedFiles.put(name, output);
+        return output;
+    }
+
+    // Forget connections that have been closed for longer than the linger period
+    private void expire(long now) {
+        // A sender retransmits at least every (backed-off) RTO until it gives
+        // up, so a connection this quiet has lost its sender
+        if (now >= this.nextIdleCheck) {
+            this.nextIdleCheck = now + LINGER_MILLIS;
+            for (Receiver connection : this.connections.values()) {
+                if (!connection.isClosed() && now - connection.getLastReceived() >= IDLE_MILLIS) {
+                    System.out.println("[REC] Closing idle connection from " + connection.getRemote());
+                    connection.abort();
+                    this.closing.add(connection);
+                }
+            }
+        }
+
+        boolean expired = false;
+        while (!this.closing.isEmpty() && now - this.closing.peek().getClosedAt() >= LINGER_MILLIS) {
+            this.connections.remove(this.closing.poll().getRemote());
+            expired = true;
+        }
+        if (expired) {
+            this.stripedFiles.values().removeIf(output -> !output.isOpen());
+        }
+    }
+}
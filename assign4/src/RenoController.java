@@ -0,0 +1,34 @@
+// Classic Reno congestion control: slow start up to ssthresh, then additive
+// increase of one segment per round trip, halving the window on loss.
+public class RenoController implements CongestionController {
+    private static final int INITIAL_WINDOW = 2;
+
+    protected double cwnd = INITIAL_WINDOW;
+    protected double ssthresh = Integer.MAX_VALUE;
+
+    public int window() {
+        return Math.max(1, (int) this.cwnd);
+    }
+
+    public void onAck(int ackedSegments, long rttNanos) {
+        for (int i = 0; i < ackedSegments; i++) {
+            if (this.cwnd < this.ssthresh) {
+                // Slow start -- one segment per ACKed segment
+                this.cwnd += 1;
+            } else {
+                // Congestion avoidance -- one segment per window
+                this.cwnd += 1 / this.cwnd;
+            }
+        }
+    }
+
+    public void onDuplicateAckLoss() {
+        this.ssthresh = Math.max(this.cwnd / 2, 2);
+        this.cwnd = this.ssthresh;
+    }
+
+    public void onTimeout() {
+        this.ssthresh = Math.max(this.cwnd / 2, 2);
+        this.cwnd = 1;
+    }
+}
@@ -0,0 +1,60 @@
+// Retransmission timeout estimator (RFC 6298). Keeps the smoothed RTT and
+// RTT variance in microseconds, so sub-millisecond round trips still give a
+// meaningful timeout, and clamps the result between MIN_RTO and MAX_RTO.
+// Each consecutive timeout doubles the RTO until a new RTT sample arrives.
+// Callers apply Karn's algorithm: segments that were retransmitted must not
+// be sampled, since their ACK may belong to either transmission.
+public class RttEstimator {
+    private static final long INITIAL_RTO_MICROS = 1000000;  // Before the first sample (1 s)
+    private static final long MIN_RTO_MICROS = 200000;       // Well above the receiver's 40 ms delayed ACK plus an RTT
+    private static final long MAX_RTO_MICROS = 60000000;     // 60 s
+    private static final int MAX_BACKOFF = 16;               // Doublings on consecutive timeouts
+
+    // Smoothing factors, as shifts: alpha = 1/8, beta = 1/4
+    private static final int ALPHA_SHIFT = 3;
+    private static final int BETA_SHIFT = 2;
+
+    private final long granularityMicros;   // Timer resolution, the floor for the variance term
+
+    private long srtt = 0;      // Smoothed RTT, in us (0 until the first sample)
+    private long rttvar = 0;    // RTT variation, in us
+    private long rto = INITIAL_RTO_MICROS;
+    private int backoff = 0;
+
+    public RttEstimator(long timerGranularityNanos) {
+        this.granularityMicros = Math.max(1, timerGranularityNanos / 1000);
+    }
+
+    // Feed an RTT measurement of a segment that was sent only once
+    public void addSample(long rttNanos) {
+        long r = Math.max(1, rttNanos / 1000);
+        if (this.srtt == 0) {
+            // First measurement
+            this.srtt = r;
+            this.rttvar = r / 2;
+        } else {
+            this.rttvar += (Math.abs(this.srtt - r) - this.rttvar) >> BETA_SHIFT;
+            this.srtt += (r - this.srtt) >> ALPHA_SHIFT;
+        }
+        this.rto = this.srtt + Math.max(this.granularityMicros, 4 * this.rttvar);
+        this.backoff = 0;
+    }
+
+    // The oldest outstanding segment timed out: double the RTO
+    public void backOff() {
+        if (this.backoff < MAX_BACKOFF) {
+            this.backoff++;
+        }
+    }
+
+    // Smoothed RTT, in ns (0 before the first sample)
+    public long srttNanos() {
+        return this.srtt * 1000;
+    }
+
+    // Current retransmission timeout including any backoff, in ns
+    public long rtoNanos() {
+        long micros = Math.min(Math.max(this.rto, MIN_RTO_MICROS), MAX_RTO_MICROS);
+        return Math.min(micros << this.backoff, MAX_RTO_MICROS) * 1000;
+    }
+}
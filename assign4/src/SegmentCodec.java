@@ -0,0 +1,215 @@
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.packet.Checksum;
+
+// Reads and writes the TCPend header in place in a ByteBuffer. Layout:
+//
+//    0  sequence number (4)
+//    4  acknowledgment number (4)
+//    8  timestamp -- System.nanoTime() at the sender (8)
+//   16  payload length << 3 | SYN FIN ACK (4)
+//   20  window (2) -- on ACKs, segments the receiver can take past the ack number;
+//       on data, segments the sender can still send before it needs an ACK (0
+//       asks the receiver not to delay its ACK)
+//   22  checksum, low byte first (2)
+//   24  payload, followed on ACKs by optional SACK blocks ([left, right) pairs of ints)
+//       and on the SYN of a multi-stream stripe by a stream option (see below)
+//
+// A codec is a flyweight: wrap() points it at a header in some buffer (a
+// received datagram, a retained outgoing header, ...) and the accessors read
+// or write that header directly, without copying it out or allocating.
+public class SegmentCodec {
+    public static final int HEADER_SIZE = 24;
+    public static final int SACK_BLOCK_SIZE = 8;
+    // File offset of the stripe (8), total file size (8), transfer id (4)
+    public static final int STREAM_OPTION_SIZE = 20;
+
+    public static final int SYN = 0b100;
+    public static final int FIN = 0b010;
+    public static final int ACK = 0b001;
+
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int ACK_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int LENGTH_FLAGS_OFFSET = 16;
+    private static final int WINDOW_OFFSET = 20;
+    private static final int CHECKSUM_OFFSET = 22;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    // Point the codec at the header starting at the buffer's position
+    public SegmentCodec wrap(ByteBuffer buffer) {
+        return wrap(buffer, buffer.position());
+    }
+
+    // Point the codec at the header starting at the given absolute offset
+    public SegmentCodec wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /*
+     * WRITERS
+     */
+
+    // Fill in every header field; the window and checksum are zeroed
+    public void writeHeader(int sequenceNumber, int ackNumber, long timestamp, int length, int flags) {
+        this.buffer.putInt(this.offset + SEQUENCE_OFFSET, sequenceNumber);
+        this.buffer.putInt(this.offset + ACK_OFFSET, ackNumber);
+        this.buffer.putLong(this.offset + TIMESTAMP_OFFSET, timestamp);
+        this.buffer.putInt(this.offset + LENGTH_FLAGS_OFFSET, (length << 3) | flags);
+        this.buffer.putShort(this.offset + WINDOW_OFFSET, (short) 0);
+        this.buffer.putShort(this.offset + CHECKSUM_OFFSET, (short) 0);
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.buffer.putLong(this.offset + TIMESTAMP_OFFSET, timestamp);
+    }
+
+    // Replace the timestamp of a checksummed segment, updating the checksum
+    // incrementally instead of summing the whole segment again
+    public void restamp(long timestamp) {
+        setChecksum(Checksum.update(checksum(), timestamp(), timestamp));
+        setTimestamp(timestamp);
+    }
+
+    // Advertise a window, in segments (at most 65535)
+    public void setWindow(int segments) {
+        this.buffer.putShort(this.offset + WINDOW_OFFSET, (short) Math.min(segments, 0xFFFF));
+    }
+
+    // Replace the window of a checksummed segment, updating the checksum incrementally
+    public void rewindow(int segments) {
+        short window = (short) Math.min(segments, 0xFFFF);
+        setChecksum(Checksum.update(checksum(), (short) window(), window));
+        this.buffer.putShort(this.offset + WINDOW_OFFSET, window);
+    }
+
+    public void setChecksum(int checksum) {
+        this.buffer.put(this.offset + CHECKSUM_OFFSET, (byte) (checksum & 0xFF));
+        this.buffer.put(this.offset + CHECKSUM_OFFSET + 1, (byte) ((checksum >> 8) & 0xFF));
+    }
+
+    // Write the i-th SACK block after the (empty) payload of an ACK
+    public void writeSackBlock(int i, int left, int right) {
+        int blockOffset = this.offset + HEADER_SIZE + length() + i * SACK_BLOCK_SIZE;
+        this.buffer.putInt(blockOffset, left);
+        this.buffer.putInt(blockOffset + 4, right);
+    }
+
+    // Write the stream option after the (empty) payload of a SYN
+    public void writeStreamOption(long fileOffset, long fileSize, int transferId) {
+        int optionOffset = this.offset + HEADER_SIZE + length();
+        this.buffer.putLong(optionOffset, fileOffset);
+        this.buffer.putLong(optionOffset + 8, fileSize);
+        this.buffer.putInt(optionOffset + 16, transferId);
+    }
+
+    /*
+     * READERS
+     */
+
+    // Whether a datagram of the given total length holds a whole header and
+    // all the payload the header claims. The other readers do no bounds
+    // checks, so test this before reading anything else from a datagram.
+    public boolean isComplete(int datagramLength) {
+        return datagramLength >= HEADER_SIZE && HEADER_SIZE + length() <= datagramLength;
+    }
+
+    public int sequenceNumber() {
+        return this.buffer.getInt(this.offset + SEQUENCE_OFFSET);
+    }
+
+    public int acknowledgmentNumber() {
+        return this.buffer.getInt(this.offset + ACK_OFFSET);
+    }
+
+    public long timestamp() {
+        return this.buffer.getLong(this.offset + TIMESTAMP_OFFSET);
+    }
+
+    // Payload length in bytes
+    public int length() {
+        return this.buffer.getInt(this.offset + LENGTH_FLAGS_OFFSET) >>> 3;
+    }
+
+    // Window, in segments (see the layout above)
+    public int window() {
+        return this.buffer.getShort(this.offset + WINDOW_OFFSET) & 0xFFFF;
+    }
+
+    public int checksum() {
+        return (this.buffer.get(this.offset + CHECKSUM_OFFSET) & 0xFF) |
+                (this.buffer.get(this.offset + CHECKSUM_OFFSET + 1) & 0xFF) << 8;
+    }
+
+    // Whether the checksum matches a datagram of the given total length (the
+    // checksum field is zeroed while summing, then put back)
+    public boolean isChecksumValid(int datagramLength) {
+        int checksum = checksum();
+        setChecksum(0);
+        int computed = Checksum.compute(this.buffer, this.offset, datagramLength);
+        setChecksum(checksum);
+        return computed == checksum;
+    }
+
+    // SYN, FIN and ACK bits
+    public int flags() {
+        return this.buffer.get(this.offset + LENGTH_FLAGS_OFFSET + 3) & (SYN | FIN | ACK);
+    }
+
+    public boolean isAck() {
+        return (this.buffer.get(this.offset + LENGTH_FLAGS_OFFSET + 3) & ACK) != 0;
+    }
+
+    public boolean isFin() {
+        return (this.buffer.get(this.offset + LENGTH_FLAGS_OFFSET + 3) & FIN) != 0;
+    }
+
+    public boolean isSyn() {
+        return (this.buffer.get(this.offset + LENGTH_FLAGS_OFFSET + 3) & SYN) != 0;
+    }
+
+    // Sequence space the segment consumes (SYN and FIN count as one byte)
+    public int segmentLength() {
+        int length = length();
+        if (length == 0 && (isSyn() || isFin())) {
+            return 1;
+        }
+        return length;
+    }
+
+    // Number of SACK blocks in a datagram of the given total length
+    public int sackCount(int datagramLength) {
+        return Math.max(0, (datagramLength - HEADER_SIZE - length()) / SACK_BLOCK_SIZE);
+    }
+
+    public int sackLeft(int i) {
+        return this.buffer.getInt(this.offset + HEADER_SIZE + length() + i * SACK_BLOCK_SIZE);
+    }
+
+    public int sackRight(int i) {
+        return this.buffer.getInt(this.offset + HEADER_SIZE + length() + i * SACK_BLOCK_SIZE + 4);
+    }
+
+    // Whether a datagram of the given total length is a SYN carrying a stream option
+    public boolean hasStreamOption(int datagramLength) {
+        return isSyn() && datagramLength - HEADER_SIZE - length() >= STREAM_OPTION_SIZE;
+    }
+
+    // Offset in the file of the stripe's first byte
+    public long streamFileOffset() {
+        return this.buffer.getLong(this.offset + HEADER_SIZE + length());
+    }
+
+    public long streamFileSize() {
+        return this.buffer.getLong(this.offset + HEADER_SIZE + length() + 8);
+    }
+
+    // Identifies the stripes of one transfer (the sender's port for the first stripe)
+    public int streamTransferId() {
+        return this.buffer.getInt(this.offset + HEADER_SIZE + length() + 16);
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Binary segment log, the fast alternative to printing a line per segment.
+// record() claims a slot in a fixed-size ring with a single CAS, fills it in
+// and publishes it; any number of threads may record at once, and none of
+// them ever blocks or formats text. A background thread copies published
+// records to the trace file in large writes. If the ring is full (the disk
+// cannot keep up) a record is dropped and counted rather than waiting.
+//
+// The file is a header (MAGIC, VERSION) followed by fixed-size records:
+//
+//    0  timestamp -- System.nanoTime() (8)
+//    8  sequence number (4)
+//   12  payload length (4)
+//   16  acknowledgment number (4)
+//   20  direction: SEND or RECEIVE (1)
+//   21  flags: SYN FIN ACK DATA bits (1)
+//   22  unused (2)
+//
+// TraceDecoder turns a trace file back into the usual text log.
+public class SegmentTrace {
+    public static final int MAGIC = 0x54435054;     // "TCPT"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_SIZE = 24;
+
+    public static final int SEND = 0;
+    public static final int RECEIVE = 1;
+
+    public static final int SYN = SegmentCodec.SYN;
+    public static final int FIN = SegmentCodec.FIN;
+    public static final int ACK = SegmentCodec.ACK;
+    public static final int DATA = 0b1000;
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;    // Records the ring holds
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final long IDLE_PARK_NANOS = 1000000;     // Writer poll interval when the ring is empty
+
+    // Ring of records, three longs each: timestamp, seq << 32 | length,
+    // ack << 32 | direction << 8 | flags
+    private final long[] records;
+    // Per slot: the claim position that may write it next, or that position
+    // plus one once the record is published (the writer then frees it by
+    // advancing it a full lap)
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long written = 0;       // Next position the writer reads (writer thread only)
+
+    private final FileChannel channel;
+    private final Thread writerThread;
+    private volatile boolean closing = false;
+
+    public SegmentTrace(String fileName) throws IOException {
+        this(fileName, DEFAULT_CAPACITY);
+    }
+
+    // capacity is rounded up to a power of two
+    public SegmentTrace(String fileName, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.records = new long[3 * size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            this.channel.write(header);
+        }
+
+        this.writerThread = new Thread(this::run, "trace-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+
+        // Senders and receivers end with System.exit(); write out what is left first
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    // Flag bits for a flag column of the text log, e.g. "- A - D"
+    public static int flagBits(String flagList) {
+        return (flagList.charAt(0) == 'S' ? SYN : 0)
+                | (flagList.charAt(2) == 'A' ? ACK : 0)
+                | (flagList.charAt(4) == 'F' ? FIN : 0)
+                | (flagList.charAt(6) == 'D' ? DATA : 0);
+    }
+
+    // Flag column of the text log for a set of flag bits
+    public static String flagList(int flags) {
+        return ((flags & SYN) != 0 ? "S " : "- ") +
+                ((flags & ACK) != 0 ? "A " : "- ") +
+                ((flags & FIN) != 0 ? "F " : "- ") +
+                ((flags & DATA) != 0 ? "D" : "-");
+    }
+
+    // Record one segment; safe to call from any thread
+    public void record(long timestamp, int direction, int flags, int sequenceNumber, int length, int ackNumber) {
+        long position = this.claimed.get();
+        int slot;
+        while (true) {
+            slot = (int) position & this.mask;
+            long sequence = this.sequences.get(slot);
+            if (sequence == position) {
+                if (this.claimed.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = this.claimed.get();
+            } else if (sequence < position) {
+                // The writer has not freed this slot yet: the ring is full
+                this.dropped.incrementAndGet();
+                return;
+            } else {
+                // Another thread claimed this position first
+                position = this.claimed.get();
+            }
+        }
+
+        int i = 3 * slot;
+        this.records[i] = timestamp;
+        this.records[i + 1] = ((long) sequenceNumber << 32) | (length & 0xFFFFFFFFL);
+        this.records[i + 2] = ((long) ackNumber << 32) | (direction << 8) | flags;
+        this.sequences.lazySet(slot, position + 1);
+    }
+
+    // Stop the writer once everything recorded so far is in the file
+    public void close() {
+        if (this.closing) {
+            return;
+        }
+        this.closing = true;
+        LockSupport.unpark(this.writerThread);
+        try {
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.dropped.get() > 0) {
+            System.err.println("[TRACE] Dropped " + this.dropped.get() + " records (trace file could not keep up)");
+        }
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        try {
+            while (true) {
+                // Read closing before draining, so nothing recorded before close() is missed
+                boolean last = this.closing;
+                int count = drain(buffer);
+                if (buffer.position() > 0 && (count == 0 || !buffer.hasRemaining() || last)) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        this.channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                if (last && count == 0) {
+                    break;
+                }
+                if (count == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Copy published records into buffer until it is full or the next record
+    // is not published yet; returns the number copied
+    private int drain(ByteBuffer buffer) {
+        int count = 0;
+        while (buffer.remaining() >= RECORD_SIZE) {
+            int slot = (int) this.written & this.mask;
+            if (this.sequences.get(slot) != this.written + 1) {
+                break;
+            }
+            int i = 3 * slot;
+            long word1 = this.records[i + 1];
+            long word2 = this.records[i + 2];
+            buffer.putLong(this.records[i]);
+            buffer.putInt((int) (word1 >>> 32));
+            buffer.putInt((int) word1);
+            buffer.putInt((int) (word2 >>> 32));
+            buffer.put((byte) (word2 >>> 8));
+            buffer.put((byte) word2);
+            buffer.putShort((short) 0);
+
+            // Free the slot for the claim one lap ahead
+            this.sequences.lazySet(slot, this.written + this.mask + 1);
+            this.written++;
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+
+// Circular buffer of in-flight segments, ordered by sequence number.
+// Slots are preallocated once (one per segment of the sliding window), each
+// with its own header buffer, and reused, so sending and acknowledging
+// segments does not allocate or box.
+public class SendWindow {
+    // A single in-flight segment. The oldest one doubles as the connection's
+    // retransmission timeout (RFC 6298 keeps one timer, not one per segment).
+    public static class Slot extends TimingWheel.Timeout {
+        public int seqNum;      // First sequence number of the segment
+        public int seqLen;      // Sequence space consumed (payload length, or 1 for SYN/FIN)
+        // Header and payload buffers, written together on the wire. The header
+        // buffer has room for the longest header, a stripe's SYN with its stream option.
+        public final ByteBuffer[] packet = {
+                ByteBuffer.allocateDirect(SegmentCodec.HEADER_SIZE + SegmentCodec.STREAM_OPTION_SIZE), null };
+        public int attempts;    // Number of retransmissions so far
+        public boolean dead;    // Gave up retransmitting this segment
+        public boolean sacked;  // Receiver reported holding this segment (SACK)
+        public boolean lost;    // Presumed lost by a timeout, waiting to be resent
+
+        private void clear() {
+            cancel();
+            this.packet[1] = null;
+            this.attempts = 0;
+            this.dead = false;
+            this.sacked = false;
+            this.lost = false;
+        }
+    }
+
+    private final Slot[] slots;
+    private final int segmentSize;  // Sequence space of a full-sized segment
+    private int head = 0;   // Index of the oldest unacknowledged segment
+    private int size = 0;   // Number of in-flight segments
+
+    public SendWindow(int capacity, int segmentSize) {
+        this.segmentSize = Math.max(1, segmentSize);
+        this.slots = new Slot[Math.max(1, capacity)];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = new Slot();
+        }
+    }
+
+    public int capacity() {
+        return this.slots.length;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // Claim the slot after the newest segment; the window must not be full
+    public Slot add(int seqNum, int seqLen, ByteBuffer payload) {
+        Slot slot = this.slots[(this.head + this.size) % this.slots.length];
+        slot.clear();
+        slot.seqNum = seqNum;
+        slot.seqLen = seqLen;
+        slot.packet[1] = payload;
+        this.size++;
+        return slot;
+    }
+
+    // The i-th in-flight segment, counting from the oldest
+    public Slot get(int i) {
+        return this.slots[(this.head + i) % this.slots.length];
+    }
+
+    // The oldest unacknowledged segment, or null if nothing is in flight
+    public Slot first() {
+        return this.size == 0 ? null : this.slots[this.head];
+    }
+
+    // Index of the oldest in-flight segment starting at or after seqNum, or
+    // size() if there is none. Every segment but the newest is full-sized
+    // (a SYN or FIN is only ever in flight alone), so this is arithmetic.
+    public int indexOf(int seqNum) {
+        if (this.size == 0) {
+            return 0;
+        }
+        int distance = seqNum - this.slots[this.head].seqNum;
+        if (distance <= 0) {
+            return 0;
+        }
+        return (int) Math.min(this.size, (distance + (long) this.segmentSize - 1) / this.segmentSize);
+    }
+
+    // Whether any segment fully covered by the cumulative ack number was retransmitted
+    public boolean coversRetransmission(int ackNum) {
+        for (int i = 0; i < this.size; i++) {
+            Slot slot = get(i);
+            if (slot.seqNum + slot.seqLen > ackNum) {
+                break;
+            }
+            if (slot.attempts > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Release every segment fully covered by the cumulative ack number.
+    // Returns the number of segments released.
+    public int advance(int ackNum) {
+        int released = 0;
+        while (this.size > 0) {
+            Slot slot = this.slots[this.head];
+            if (slot.seqNum + slot.seqLen > ackNum) {
+                break;
+            }
+            slot.clear();
+            this.head = (this.head + 1) % this.slots.length;
+            this.size--;
+            released++;
+        }
+        return released;
+    }
+}
@@ -1,33 +1,40 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 
-public class Sender {
-    private final Object lock = new Object();
-    private final Object qlock = new Object();
-    
-    private Thread senderThread;
-    private Thread receiverThread;
-    private Thread timeoutThread;
+import net.floodlightcontroller.packet.Checksum;
 
-    private static final int MAX_RETRANSMISSION_ATTEMPTS = 16; // Maximum number of retransmission attempts
-    private static final int HEADER_SIZE = 24;
+// Sending end of a transfer. Every piece of connection state is owned by a
+// single event-loop thread: the handshake, inbound ACKs, retransmission
+// timers, pacing and reading the file are all handled there, one at a time,
+// so none of it needs a lock.
+public class Sender implements EventLoop.Connection {
+    private boolean done = false;
+    private final CountDownLatch finished = new CountDownLatch(1);
 
-    // Constants for smoothing factors
-    private static final double ALPHA = 0.125;
-    private static final double BETA = 0.25;
+    private static final int MAX_RETRANSMISSION_ATTEMPTS = 16; // Maximum number of retransmission attempts
+    private static final int MAX_SYN_ATTEMPTS = 6;      // SYNs sent before the handshake gives up
+    private static final int HEADER_SIZE = SegmentCodec.HEADER_SIZE;
+    private static final long TIMER_TICK_NANOS = 100000; // Retransmission timer resolution (100 us)
+    private static final int DUP_ACK_THRESHOLD = 3;     // Duplicate ACKs that signal a lost segment
 
-    // Variables for timeout calculation
-    private long estimatedRTT = 0;
-    private long estimatedDeviation = 0;
-    private long timeoutDuration = 5000; // Initial timeout duration set to 5 seconds
+    // Smoothed RTT and retransmission timeout
+    private final RttEstimator rtt = new RttEstimator(TIMER_TICK_NANOS);
 
-    private static final int SYN = 0b100;
-    private static final int FIN = 0b010;
-    private static final int ACK = 0b001;
+    private static final int SYN = SegmentCodec.SYN;
+    private static final int FIN = SegmentCodec.FIN;
+    private static final int ACK = SegmentCodec.ACK;
     private static final int DATA = 0b000;
 
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
     // Variables to track statistics
     private int totalDataTransferred = 0;
     private int totalDataReceived = 0;
@@ -40,6 +47,10 @@ public class Sender {
     private int sequenceNumber = 0;
     private int ackNumber = 0;
 
+    // Handshake progress: the SYN goes out on the first tick, data once the SYN-ACK is in
+    private boolean synSent = false;
+    private boolean established = false;
+
     private int port;
     private String remoteIP;
     private int remotePort;
@@ -47,22 +58,64 @@ public class Sender {
     private long fileSize;
     private int mtu;
     private int sws;
-    private DatagramSocket socket;
+    private Transport transport;
     private InetAddress remoteAddress;
-    private byte[] buffer;
-    private Queue<byte[]> queuedPacekts;
-
-    // Map to store timers for each sent packet
-    private Map<Integer, Timer> retransmissionTimers = new HashMap<>();
-
-    // Map to store the number of duplicate ACKs received for each sequence number
-    private Map<Integer, Integer> duplicateAcksCount = new HashMap<>();
-
-    // Map to store sent packets for tracking and resending
-    private Map<Integer, byte[]> sentPackets = new HashMap<>();
-
-    // Map to store the number of retransmission attempts for each sequence number
-    private Map<Integer, Integer> retransmissionAttempts = new HashMap<>();
+    private boolean zeroCopy = false;
+    private FileChannel source;             // File being sent, read a segment at a time
+    private long sourceOffset = 0;          // File offset of the next segment to read
+    private long sourceEnd = 0;             // File offset just past the last byte to send
+    private MappedByteBuffer sourceRegion;  // Current mapping of the file (zero-copy only)
+    private long sourceRegionOffset = 0;
+
+    // Set when this connection sends one stripe of a multi-stream transfer
+    private boolean striped = false;
+    private long stripeOffset;
+    private long totalFileSize;
+    private int transferId;
+    private Queue<ByteBuffer> queuedPacekts;        // Payloads read but not yet sent (window full, or waiting to be paced)
+    private int queuedSeqNum;                       // Sequence number of the first queued payload
+    private final ByteBuffer[] ackPacket = { ByteBuffer.allocateDirect(HEADER_SIZE), EMPTY };  // Pure ACKs are built here
+
+    // Sent but unacknowledged segments, with their retransmission state
+    private SendWindow window;
+
+    // Decides how much of the window may be in flight
+    private CongestionController congestionController = new RenoController();
+
+    // Binary segment log; segments are printed as text when null
+    private SegmentTrace trace;
+
+    // Spaces out new data segments when pacing is enabled (null otherwise)
+    private Pacer pacer;
+
+    // Retransmission timeouts of the segments in the window
+    private TimingWheel timers;
+
+    // Header views for packets being handled and sent
+    private final SegmentCodec inbound = new SegmentCodec();
+    private final SegmentCodec outbound = new SegmentCodec();
+
+    // Last cumulative ack number received, used to detect duplicate ACKs
+    private int lastAckNumber = -1;
+    private int dupAckCount = 0;
+
+    // Fast recovery (NewReno): entered on the third duplicate ACK and left once
+    // everything that was in flight at that point is acknowledged
+    private boolean inRecovery = false;
+    private int recover = 0;                // Highest sequence number sent when recovery started
+    private int highestSacked = 0;          // Right edge of the highest SACK block seen
+    private int windowInflation = 0;        // Extra segments allowed by duplicate ACKs (limited transmit, recovery)
+
+    // Flow control: the receiver's advertised window, in segments. While it is
+    // zero and nothing is in flight, a probe segment goes out every RTO.
+    private int peerWindow = Integer.MAX_VALUE;
+    private long probeAtNanos = 0;          // When to send the next zero-window probe, 0 if none is due
+
+    private final Transport.Handler packetHandler = (datagram, from) -> {
+        // Handle inbound packet straight out of the receive buffer
+        this.handlePacket(datagram);
+    };
+    private final TimingWheel.Handler retransmit = (timeout) -> handleTimeout((SendWindow.Slot) timeout);
 
     public Sender(int p, String remIP, int remPort, String fname, int m, int s) {
         this.port = p;
@@ -71,19 +124,21 @@ public class Sender {
         this.fileName = fname;
         this.mtu = m;
         this.sws = s;
-        // Leave space for the header
-        this.buffer = new byte[mtu - HEADER_SIZE];
-        this.queuedPacekts = new ConcurrentLinkedQueue<byte[]>();
+        this.queuedPacekts = new ArrayDeque<ByteBuffer>();
+        this.window = new SendWindow(sws, mtu - HEADER_SIZE);
+        this.timers = new TimingWheel(TIMER_TICK_NANOS, System.nanoTime());
 
         try {
-            this.socket = new DatagramSocket(port);
-        } catch (SocketException e) {
+            this.remoteAddress = InetAddress.getByName(remoteIP);
+        } catch (UnknownHostException e) {
             e.printStackTrace();
         }
 
         try {
-            this.remoteAddress = InetAddress.getByName(remoteIP);
-        } catch (UnknownHostException e) {
+            // Connected so header and payload can be sent with one gathering write
+            this.transport = new Transport(port, mtu);
+            this.transport.connect(new InetSocketAddress(this.remoteAddress, this.remotePort));
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
@@ -93,629 +148,705 @@ public class Sender {
         if (file.exists() && file.isFile()) {
             // Get the total size of the file in bytes
             this.fileSize = file.length();
+            this.sourceEnd = this.fileSize;
         } else {
             System.out.println("File not found or is not a file.");
         }
     }
 
+    // Send segments straight out of a memory-mapped view of the file instead of
+    // reading them onto the heap
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    // Replace the default (Reno) congestion control policy
+    public void setCongestionController(CongestionController congestionController) {
+        this.congestionController = congestionController;
+    }
+
+    // Send only one stripe of the file as part of a multi-stream transfer:
+    // length bytes starting at offset, announced to the receiver on the SYN.
+    // Every stripe of the transfer uses the same transfer id.
+    public void setStripe(long offset, long length, int transferId) {
+        this.striped = true;
+        this.stripeOffset = offset;
+        this.totalFileSize = this.fileSize;
+        this.transferId = transferId;
+        this.sourceOffset = offset;
+        this.sourceEnd = offset + length;
+        // Sequence numbers (and the final ack) cover just this stripe
+        this.fileSize = length;
+    }
+
+    // Log segments to a binary trace instead of printing a line for each
+    public void setTrace(SegmentTrace trace) {
+        this.trace = trace;
+    }
+
+    // Space new data segments at cwnd/SRTT instead of sending them in bursts
+    public void setPacing(boolean pacing) {
+        this.pacer = pacing ? new Pacer() : null;
+    }
+
     /*
      * STARTUP CODE
      */
 
+    // Run the transfer on an event loop of its own and exit once it is done
     public void start() {
-        // Attempt handshake
-        System.out.println("[SND] Attempting handshake on port " + this.port + "...");
         try {
-            this.handshake();
+            EventLoop loop = new EventLoop(1);
+            start(loop);
+            awaitFinish();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        // Successfully exit
+        System.exit(1);
+    }
+
+    // Run the transfer on a (possibly shared) event loop and return at once.
+    // All of the transfer's work, the handshake included (packets, timers,
+    // pacing, reading the file), is done by one of the loop's threads. Use
+    // awaitFinish() to wait for the end.
+    public void start(EventLoop loop) {
+        try {
+            openSource();
         } catch (IOException e) {
             e.printStackTrace();
+            finish();
+            return;
         }
 
-        System.out.println("[SND] Sending data to " + this.remoteIP + ":" + this.remotePort + "...");
-        this.senderThread = new Thread(() -> {
-            try {
-                // Open the file for reading
-                FileInputStream fileInputStream = new FileInputStream(fileName);
-                int bytesRead;
+        // The SYN goes out on the connection's first tick
+        System.out.println("[SND] Attempting handshake on port " + this.port + "...");
+        loop.register(this);
+    }
 
-                // Buffer is of size mtu
-                while ((bytesRead = fileInputStream.read(this.buffer)) != -1) {
-                    byte[] data = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, data, 0, bytesRead);
+    // Block until a transfer started on an event loop has finished
+    public void awaitFinish() throws InterruptedException {
+        this.finished.await();
+    }
 
-                    // Send data segment
-                    String flagList = "- A - D";
-                    int flagNum = (DATA | ACK);
+    /*
+     * EVENT LOOP
+     */
 
-                    this.sendPacket(data, flagNum, flagList);
-                }
+    @Override
+    public void register(Selector selector) throws IOException {
+        this.transport.register(selector, this);
+    }
 
-                fileInputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    @Override
+    public void onReadable() throws IOException {
+        this.transport.drain(this.packetHandler);
+    }
+
+    @Override
+    public long onTick(long nowNanos) {
+        long waitNanos = -1;
+        if (!this.done) {
+            // Open the connection; its SYN is retransmitted like any segment
+            if (!this.synSent) {
+                this.synSent = true;
+                this.sendPacket(EMPTY, SYN);
             }
-        });
 
-        this.receiverThread = new Thread(() -> {
+            // Fire only the timers that are due
+            this.timers.advance(nowNanos, this.retransmit);
+
+            // Keep about a window's worth of segments queued instead of the whole file
+            // (none until the handshake is done)
             try {
-                // Receive forever (until we are done sending)
-                while (true) {
-                    byte[] tmpBuf = new byte[mtu];
-
-                    // Wait for any inbound packet type
-                    DatagramPacket inboundPacket = new DatagramPacket(tmpBuf, tmpBuf.length);
-                    try{                    
-                        socket.receive(inboundPacket); // blocking!
-                    } catch (SocketTimeoutException e) {
-                        // Resend last packet
-                        resendPacket(this.sequenceNumber);
-                    }
-
-                    // TODO: handle checksum!!!
-
-                    // int oldChecksum = extractChecksum(inboundPacket.getData());
-
-                    // inboundPacket.getData()[22] &= 0;
-                    // inboundPacket.getData()[23] &= 0;
-
-                    // int currChecksum = getChecksum(inboundPacket.getData());
-
-                    // if(currChecksum != oldChecksum) {
-                    //     // Silently drop packet
-                    //     totalPacketsWithIncorrectChecksum++;
-                    // } else {
-                    // Handle inbound packet
-                    this.handlePacket(inboundPacket.getData());
-                    // }
+                while (this.established && !this.done && this.queuedPacekts.size() < this.sws && readNextSegment()) {
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        });
-
-        // Thread for monitoring retransmissions and handling timeouts
-        this.timeoutThread = new Thread(() -> {
-            while (true) {
-                synchronized (lock) {
-                    // Check for expired retransmission timers
-                    for (Map.Entry<Integer, Timer> entry : retransmissionTimers.entrySet()) {
-                        Timer timer = entry.getValue();
-                        if (!timer.isDead() && timer.hasExpired()) {
-                            int sequenceNumber = entry.getKey();
-                            resendPacket(sequenceNumber);
-                            // Restart the timer
-                            timer.restart();
-                        }
-                    }
-                }
 
-                // Sleep for a short duration before checking again
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            // Release every queued segment whose pacing slot has come (more than
+            // one when the loop woke up later than the pacing interval)
+            while (this.pacer != null && this.pacer.due(nowNanos) && sendNextQueued()) {
+                this.pacer.recordSend(nowNanos);
+            }
+
+            // The receiver's window is closed and no ACK in flight will reopen it:
+            // probe with the next segment once the persist timer runs out
+            if (this.peerWindow == 0 && this.window.isEmpty() && !this.queuedPacekts.isEmpty()) {
+                if (this.probeAtNanos == 0) {
+                    this.probeAtNanos = nowNanos + this.rtt.rtoNanos();
+                } else if (nowNanos - this.probeAtNanos >= 0) {
+                    this.probeAtNanos = 0;
+                    sendNextQueued(true);
                 }
+            } else {
+                this.probeAtNanos = 0;
+            }
+
+            waitNanos = this.timers.nanosUntilNextEvent(nowNanos);
+            if (this.pacer != null && !this.queuedPacekts.isEmpty() && this.window.size() < sendWindow()) {
+                long slotNanos = this.pacer.nanosUntilNextSlot(nowNanos);
+                waitNanos = waitNanos < 0 ? slotNanos : Math.min(waitNanos, slotNanos);
+            }
+            if (this.probeAtNanos != 0) {
+                long probeNanos = Math.max(0, this.probeAtNanos - nowNanos);
+                waitNanos = waitNanos < 0 ? probeNanos : Math.min(waitNanos, probeNanos);
             }
-        });
+        }
 
-        this.timeoutThread.start();
-        this.senderThread.start();
-        this.receiverThread.start();
+        if (this.done) {
+            release();
+            return -1;
+        }
+        return waitNanos;
     }
 
-    // Method to handle TCP handshake only if no packets have been sent
-    private void handshake() throws IOException {
-        try {
-            byte[] empty_data = new byte[0];
-            synchronized (lock) {
-                String flagList = "S - - -";
-                int flagNum = SYN;
-
-                // Send SYN packet
-                this.sendPacket(empty_data, flagNum, flagList);
-                socket.setSoTimeout(5000); // Wait 5 seconds for synack, else resend syn
-
-                byte[] tmpBuf = new byte[mtu];
-
-                // Wait for SYN-ACK from receiver
-                DatagramPacket synackPacket = new DatagramPacket(tmpBuf, tmpBuf.length);
-                try{
-                    socket.receive(synackPacket); // blocking
-                } catch (SocketTimeoutException e) {
-                    // Probably won't drop two syn's in a row
-                    // this.sendPacket(empty_data, flagNum, flagList);
-                    // socket.receive(synackPacket); // blocking
-                    this.sequenceNumber = 0;
-                    this.ackNumber = 0;
-                    handshake();
-                }
-                
-                // Process SYN-ACK packet
-                if (extractSYNFlag(synackPacket.getData()) && extractACKFlag(synackPacket.getData())) {
-                    // Make sure the ack number is correct (syn+1)
-                    if (this.extractAcknowledgmentNumber(synackPacket.getData()) == this.sequenceNumber + 1) {
-                        // Handle the syn-ack packet
-                        this.handlePacket(synackPacket.getData());
-                    } else {
-                        throw new IOException("Handshake Failed -- did not receive correct SYN-ACK from receiver.");
-                    }
-                } else {
-                    throw new IOException("Handshake Failed -- did not receive SYN-ACK from receiver.");
-                }
+    @Override
+    public boolean isDone() {
+        return this.done;
+    }
+
+    @Override
+    public void abort(RuntimeException cause) {
+        cause.printStackTrace();
+        if (!this.done) {
+            finish();
+        }
+        release();
+    }
+
+    // Open the file for reading a segment at a time
+    private void openSource() throws IOException {
+        this.source = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    }
+
+    // Read the next segment of the file and hand it to sendPacket; returns
+    // false at the end of the file. With zero-copy on, each segment is a view
+    // of a memory-mapped region of the file, so payload bytes are never copied
+    // onto the heap.
+    private boolean readNextSegment() throws IOException {
+        if (this.sourceOffset >= this.sourceEnd) {
+            return false;
+        }
+        int segmentSize = mtu - HEADER_SIZE;
+        int length = (int) Math.min(segmentSize, this.sourceEnd - this.sourceOffset);
+
+        ByteBuffer payload;
+        if (this.zeroCopy) {
+            if (this.sourceRegion == null || this.sourceOffset >= this.sourceRegionOffset + this.sourceRegion.limit()) {
+                // A single mapping is limited to 2 GB, so map whole segments a region at a time
+                long regionSize = (Integer.MAX_VALUE / segmentSize) * (long) segmentSize;
+                this.sourceRegionOffset = this.sourceOffset;
+                this.sourceRegion = this.source.map(FileChannel.MapMode.READ_ONLY, this.sourceOffset,
+                        Math.min(regionSize, this.sourceEnd - this.sourceOffset));
+            }
+            payload = this.sourceRegion.slice((int) (this.sourceOffset - this.sourceRegionOffset), length);
+        } else {
+            // A fresh buffer per segment, since queued and in-flight segments keep theirs
+            payload = ByteBuffer.allocate(length);
+            while (payload.hasRemaining() && this.source.read(payload, this.sourceOffset + payload.position()) >= 0) {
+            }
+            payload.flip();
+            if (!payload.hasRemaining()) {
+                return false;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        this.sourceOffset += payload.remaining();
+
+        // Send data segment
+        this.sendPacket(payload, DATA | ACK);
+        return true;
     }
 
     /*
      * SENDERS
      */
 
-    private void sendPacket(byte[] data, int flagNum, String flagList) {
-        synchronized (lock) {
-            byte[] dataPkt = new byte[HEADER_SIZE + data.length];
-            byte[] dataHdr = createHeader(data.length, flagNum);
+    private void sendPacket(ByteBuffer data, int flagNum) {
+        int length = data.remaining();
 
-            System.arraycopy(dataHdr, 0, dataPkt, 0, HEADER_SIZE);
-            System.arraycopy(data, 0, dataPkt, HEADER_SIZE, data.length);
-
-            int checksum = getChecksum(dataPkt);
-
-            dataPkt[22] = (byte) (checksum & 0xFF);
-            dataPkt[23] = (byte) ((checksum >> 8) & 0xFF);
-
-            if(this.sentPackets.size() < this.sws) {
-                try {
-                    sendUDPPacket(dataPkt, flagList, this.sequenceNumber);
-                    if(this.sequenceNumber != 1) {
-                        // Log the timer for retransmission
-                        Timer timer = new Timer(timeoutDuration);
-                        retransmissionTimers.put(this.sequenceNumber, timer);
-                    }
-
-                    // Store the sent packet in sentPackets for tracking
-                    sentPackets.put(this.sequenceNumber, dataPkt);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                synchronized(qlock) {
-                    // Enqueue the packet (with old timestamp)
-                    this.queuedPacekts.add(dataPkt);
-                }
+        if (length == 0 && flagNum == ACK) {
+            // Pure ACKs take no sequence space and are never retransmitted; they
+            // are all built in one header buffer
+            writeHeader(this.ackPacket[0], this.sequenceNumber, data, flagNum, roomAfterNext());
+            try {
+                sendUDPPacket(this.ackPacket, flagNum, this.sequenceNumber);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        } else if ((flagNum & (SYN | FIN)) != 0 || ((this.pacer == null || length == 0)
+                && this.queuedPacekts.isEmpty() && this.window.size() < sendWindow())) {
+            // SYN and FIN go out at once, whatever the congestion and receive windows
+            // (they are only sent when nothing else is in flight)
+            sendSegment(this.sequenceNumber, data, flagNum);
+        } else {
+            // Enqueue the payload; its header is written when it is sent
+            if (this.queuedPacekts.isEmpty()) {
+                this.queuedSeqNum = this.sequenceNumber;
+            }
+            this.queuedPacekts.add(data);
+        }
 
-            // Book-keeping
-            this.sequenceNumber += extractLength(dataHdr);
+        // Book-keeping
+        this.sequenceNumber += length;
+    }
+
+    // Send a segment that takes sequence space, tracking it in the window. Its
+    // slot holds the header (retransmissions reuse it), so nothing is allocated.
+    private void sendSegment(int seqNum, ByteBuffer data, int flagNum) {
+        int room = roomAfterNext();
+        // SYN and FIN take one sequence number
+        SendWindow.Slot slot = this.window.add(seqNum, Math.max(1, data.remaining()), data);
+        writeHeader(slot.packet[0], seqNum, data, flagNum, room);
+        try {
+            sendUDPPacket(slot.packet, flagNum, seqNum);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Start the retransmission timer if nothing else was in flight
+        if (slot == this.window.first()) {
+            armTimer(slot);
         }
     }
 
-    // Method to resend a packet given its sequence number
-    private void resendPacket(int seqNum) {
-        synchronized(lock){
-            byte[] packet = sentPackets.get(seqNum);
+    // Write a segment's header into a header buffer (and the stream option, on
+    // the SYN of a stripe: it has no payload, so the option goes right after the
+    // header), with a checksum over the header and the payload
+    private void writeHeader(ByteBuffer headerBuffer, int seqNum, ByteBuffer data, int flagNum, int room) {
+        int length = data.remaining();
+        boolean streamOption = (flagNum == SYN && this.striped);
+        headerBuffer.clear().limit(HEADER_SIZE + (streamOption ? SegmentCodec.STREAM_OPTION_SIZE : 0));
+        SegmentCodec header = this.outbound.wrap(headerBuffer, 0);
+        header.writeHeader(seqNum, this.ackNumber, System.nanoTime(), length, flagNum);
+        header.setWindow(room);
+        if (streamOption) {
+            header.writeStreamOption(this.stripeOffset, this.totalFileSize, this.transferId);
+        }
 
-            String flagList = "";
-            // Build flagList
-            flagList += extractSYNFlag(packet) ? "S " : "- ";
-            flagList += extractACKFlag(packet) ? "A " : "- ";
-            flagList += extractFINFlag(packet) ? "F " : "- ";
-            flagList += (extractLength(packet) > 0) ? "D " : "- ";
+        // Checksum covers the header (with a zeroed checksum field), any option and the payload
+        long sum = Checksum.add(0, headerBuffer, 0, headerBuffer.limit());
+        header.setChecksum(Checksum.finish(Checksum.add(sum, data, data.position(), length)));
+    }
 
-            if (packet != null) {
-                // Check if maximum retransmission attempts reached
-                int attempts = retransmissionAttempts.getOrDefault(seqNum, 0);
-                if (attempts >= MAX_RETRANSMISSION_ATTEMPTS) {
-                    // Stop retransmitting and report error
-                    System.err.println("Maximum retransmission attempts reached for sequence number: " + seqNum);
-                    Timer timer = retransmissionTimers.get(seqNum);
-                    timer.markDead();
+    // Method to resend an in-flight packet
+    private void resendPacket(SendWindow.Slot slot) {
+        if (slot.dead || slot.sacked) {
+            return;
+        }
+        SegmentCodec header = this.outbound.wrap(slot.packet[0], 0);
 
-                    this.sentPackets.remove(extractSequenceNumber(packet));
+        // Check if maximum retransmission attempts reached
+        if (slot.attempts >= MAX_RETRANSMISSION_ATTEMPTS) {
+            // Stop retransmitting and report error
+            System.err.println("Maximum retransmission attempts reached for sequence number: " + slot.seqNum);
+            slot.dead = true;
 
-                    if(extractFINFlag(packet)) {
-                        
-                        printStatistics();
-                        
-                        // Successfully exit
-                        System.exit(1);
-                    }
+            if(header.isFin()) {
+                finish();
+            }
 
-                    // we may want to handle this error condition appropriately (e.g., close the connection, notify the user, etc.)
-                    return;
-                }
-                // Resend the packet
-                try {
-                    // Update the timestamp
-                    modifyTimestamp(packet);
-
-                    sendUDPPacket(packet, flagList, seqNum);
-                    // Restart the timer
-                    Timer timer = retransmissionTimers.get(seqNum);
-                    if (timer != null) {
-                        timer.restart();
-                    }
-                    // Increment total retransmissions for statistics tracking
-                    totalRetransmissions++;
-                    // Increment the retransmission attempts counter for the current sequence number
-                    retransmissionAttempts.put(seqNum, retransmissionAttempts.getOrDefault(seqNum, 0) + 1);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // we may want to handle this error condition appropriately (e.g., close the connection, notify the user, etc.)
+            return;
+        }
+        // Resend the packet
+        try {
+            // Update the timestamp (and patch the checksum to match). A lost
+            // segment is worth a prompt ACK, so ask the receiver not to delay it.
+            header.restamp(System.nanoTime());
+            header.rewindow(0);
+
+            sendUDPPacket(slot.packet, header.flags(), slot.seqNum);
+            slot.lost = false;
+            // Restart the timer (RFC 6298 5.4) when this segment is the one it runs for
+            if (slot == this.window.first()) {
+                armTimer(slot);
             }
+            // Increment total retransmissions for statistics tracking
+            totalRetransmissions++;
+            // Increment the retransmission attempts counter for the current sequence number
+            slot.attempts++;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    // Method to send UDP packet
-    private void sendUDPPacket(byte[] data, String flagList, int seqNum) throws IOException {
-        // DatagramPacket packet = new DatagramPacket(data, data.length, this.remoteAddress, this.remotePort);
-        DatagramPacket packet = new DatagramPacket(data, data.length, this.remoteAddress, this.port);
-        this.socket.send(packet);
+    // (Re)start the retransmission timer, with the current timeout duration,
+    // for the oldest in-flight segment
+    private void armTimer(SendWindow.Slot slot) {
+        // The loop thread picks up an earlier deadline before it next sleeps
+        this.timers.schedule(slot, this.rtt.rtoNanos(), System.nanoTime());
+    }
+
+    // Method to send UDP packet -- header and payload go out in one gathering write
+    private void sendUDPPacket(ByteBuffer[] packet, int flags, int seqNum) throws IOException {
+        this.transport.send(packet);
 
         // Book-Keeping
+        int length = packet[1].remaining();
         this.totalPacketsSent += 1;
-        this.totalDataTransferred += extractLength(data);
+        this.totalDataTransferred += length;
 
         // Output information about the sent packet
-        outputSegmentInfo("snd", flagList, seqNum, extractLength(data), this.ackNumber);
+        outputSegmentInfo("snd", flags, seqNum, length, this.ackNumber);
     }
 
     /*
      * HANDLERS
      */
 
-    private void handlePacket(byte[] recvPacketData) {
-        synchronized (lock) {
-            totalPacketsReceived++;
-            totalDataReceived += extractLength(recvPacketData);
-
-            String flagList = "- - - -";
-            int flagNum = 0;
-
-            // Handle SYN-ACK and FIN-ACK
-            if (extractSYNFlag(recvPacketData)) {
-                flagList = "S A - -";
-                outputSegmentInfo("rcv", flagList, extractSequenceNumber(recvPacketData),
-                        extractLength(recvPacketData), extractAcknowledgmentNumber(recvPacketData));
-                
-                sentPackets.remove(0);
-                retransmissionTimers.remove(0);
-
-                ackNumber++;
-                sequenceNumber++;
-                flagList = "- A - -";
-                flagNum = ACK;
-
-                byte[] empty_data = new byte[0];
-                sendPacket(empty_data, flagNum, flagList);
-            } else if (extractFINFlag(recvPacketData)) {
-                flagList = "- A F -";
-                outputSegmentInfo("rcv", flagList, extractSequenceNumber(recvPacketData),
-                        extractLength(recvPacketData), extractAcknowledgmentNumber(recvPacketData));
-                
-                ackNumber++;
-                sequenceNumber++;
-                flagList = "- A - -";
-                flagNum = ACK;
-
-                byte[] empty_data = new byte[0];
-                sendPacket(empty_data, flagNum, flagList);
-
-                printStatistics();
-                
-                // Successfully exit
-                System.exit(1);
-            } else { // Handle regular ACK
-                flagList = "- A - -";
-                outputSegmentInfo("rcv", flagList, extractSequenceNumber(recvPacketData),
-                        extractLength(recvPacketData), extractAcknowledgmentNumber(recvPacketData));
-
-                // Handle unacked packet
-                handleAcknowledgment(extractAcknowledgmentNumber(recvPacketData), extractTimestamp(recvPacketData));
-
-                // Check if ACK acknowledges all sent data (indicating end of transmission)
-                if (extractAcknowledgmentNumber(recvPacketData) == (fileSize + 1)) {
-                    flagList = "- - F -";
-                    flagNum = FIN;
-                    byte[] empty_data = new byte[0];
-                    sendPacket(empty_data, flagNum, flagList);
-                }
-            }
+    private void handlePacket(ByteBuffer datagram) {
+        SegmentCodec segment = this.inbound.wrap(datagram);
+        if (!segment.isComplete(datagram.limit())) {
+            // Truncated or garbled
+            return;
         }
-    }
+        if (!segment.isChecksumValid(datagram.limit())) {
+            totalPacketsWithIncorrectChecksum++;
+            return;
+        }
+        totalPacketsReceived++;
+        totalDataReceived += segment.length();
 
-    // Method to handle acknowledgment of a packet
-    private void handleAcknowledgment(int seqNum, long ackTimestamp) {
-        synchronized (lock) {
-            int numRemovals = 0;
+        // Handle SYN-ACK and FIN-ACK
+        if (segment.isSyn()) {
+            outputSegmentInfo("rcv", SYN | ACK, segment.sequenceNumber(),
+                    segment.length(), segment.acknowledgmentNumber());
 
-            // Only remove the acknowledged packet from the sent packets data structure if we have
-            // an ack for the next successive packet
-            Iterator<Map.Entry<Integer, byte[]>> unAckedIterator = sentPackets.entrySet().iterator();
-            while (unAckedIterator.hasNext()) {
-                Map.Entry<Integer, byte[]> entry = unAckedIterator.next();
-                if (entry.getKey() < seqNum) {
-                    unAckedIterator.remove(); // Safe removal using iterator
-                    numRemovals += 1;
-                }
+            // A second SYN-ACK answers a resent SYN; the first one already completed the handshake
+            if (this.established) {
+                return;
             }
 
-            // Send all removed packets -- "adjust sliding window"
-            for(int i = 0; i<numRemovals; i++) {
-                synchronized(qlock){
-                    // Dequeue and send a packet
-                    byte[] nextPacketUp = this.queuedPacekts.poll();
-                    if(nextPacketUp != null) {
-                        String flagList = "";
-                        // Build flagList
-                        flagList += extractSYNFlag(nextPacketUp) ? "S " : "- ";
-                        flagList += extractACKFlag(nextPacketUp) ? "A " : "- ";
-                        flagList += extractFINFlag(nextPacketUp) ? "F " : "- ";
-                        flagList += (extractLength(nextPacketUp) > 0) ? "D " : "- ";
-                        
-                        try {
-                            // Update the timestamp
-                            modifyTimestamp(nextPacketUp);
-
-                            sendUDPPacket(nextPacketUp, flagList, extractSequenceNumber(nextPacketUp));
-
-                            // Log the timer for retransmission
-                            Timer timer = new Timer(timeoutDuration);
-                            retransmissionTimers.put(extractSequenceNumber(nextPacketUp), timer);
-
-                            // Store the sent packet in sentPackets for tracking
-                            sentPackets.put(extractSequenceNumber(nextPacketUp), nextPacketUp);
-                            // this.sequenceNumber += extractLength(nextPacketUp);                            
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+            // Make sure the ack number is correct (syn+1)
+            if (!segment.isAck() || segment.acknowledgmentNumber() != this.sequenceNumber + 1) {
+                System.err.println("Handshake Failed -- did not receive correct SYN-ACK from receiver.");
+                finish();
+                return;
             }
-
-            // Remove retransmission timer
-            Iterator<Map.Entry<Integer, Timer>> retransTimerIterator = retransmissionTimers.entrySet().iterator();
-            while (retransTimerIterator.hasNext()) {
-                Map.Entry<Integer, Timer> entry = retransTimerIterator.next();
-                if (entry.getKey() < seqNum) {
-                    retransTimerIterator.remove(); // Safe removal using iterator
-                }
+            
+            // Release the SYN
+            this.window.advance(segment.acknowledgmentNumber());
+            this.peerWindow = segment.window();
+
+            ackNumber++;
+            sequenceNumber++;
+            sendPacket(EMPTY, ACK);
+
+            this.established = true;
+            System.out.println("[SND] Sending data to " + this.remoteIP + ":" + this.remotePort + "...");
+        } else if (!this.established) {
+            System.err.println("Handshake Failed -- did not receive SYN-ACK from receiver.");
+            finish();
+        } else if (segment.isFin()) {
+            outputSegmentInfo("rcv", FIN | ACK, segment.sequenceNumber(),
+                    segment.length(), segment.acknowledgmentNumber());
+            
+            ackNumber++;
+            sequenceNumber++;
+            sendPacket(EMPTY, ACK);
+
+            finish();
+        } else { // Handle regular ACK
+            outputSegmentInfo("rcv", ACK, segment.sequenceNumber(),
+                    segment.length(), segment.acknowledgmentNumber());
+
+            // Mark segments the receiver already holds past the cumulative ack
+            processSackBlocks(segment, datagram.remaining());
+
+            // Take the window from the newest ack (older, reordered ones are stale)
+            boolean windowUpdate = false;
+            if (segment.acknowledgmentNumber() >= this.lastAckNumber) {
+                windowUpdate = (segment.window() != this.peerWindow);
+                this.peerWindow = segment.window();
             }
 
+            // Handle unacked packet
+            handleAcknowledgment(segment.acknowledgmentNumber(), segment.timestamp(), windowUpdate);
 
-            // Calculate the timeout duration based on the acknowledgment timestamp
-            boolean firstAck = (seqNum == 1+mtu-HEADER_SIZE);
-            calculateTimeoutDuration(ackTimestamp, firstAck);
-
-            // Check if this is a duplicate ack
-            int duplicateAcks = duplicateAcksCount.getOrDefault(seqNum, 0);
-            duplicateAcksCount.put(seqNum, duplicateAcks + 1);
-            if (duplicateAcks == 3) {
-                // Trigger retransmission logic for the packet with this sequence number
-                resendPacket(seqNum);
-                duplicateAcksCount.put(seqNum, 0); // Reset duplicate ACK count
+            // Check if ACK acknowledges all sent data (indicating end of transmission)
+            if (segment.acknowledgmentNumber() == (fileSize + 1)) {
+                sendPacket(EMPTY, FIN);
             }
         }
     }
 
-    /*
-     * MISC.
-     */
-
-    private void modifyTimestamp(byte[] header) {
-        long currentNano = System.nanoTime();
-        header[8] = (byte) ((currentNano >> 56) & 0xFF);
-        header[9] = (byte) ((currentNano >> 48) & 0xFF);
-        header[10] = (byte) ((currentNano >> 40) & 0xFF);
-        header[11] = (byte) ((currentNano >> 32) & 0xFF);
-        header[12] = (byte) ((currentNano >> 24) & 0xFF);
-        header[13] = (byte) ((currentNano >> 16) & 0xFF);
-        header[14] = (byte) ((currentNano >> 8) & 0xFF);
-        header[15] = (byte) (currentNano & 0xFF);
-    }
-
-    // Method to close the connection and print statistics
-    private void printStatistics() {
-        for(Map.Entry<Integer, Integer> entry: duplicateAcksCount.entrySet()) {
-            totalDuplicateAcks+=((entry.getValue() == 0) ? entry.getValue() : entry.getValue()-1);
+    // Method to handle acknowledgment of a packet. An ack that only changes the
+    // advertised window, or that advertises a zero window (the receiver drops
+    // data it has no room for), is not a duplicate ACK.
+    private void handleAcknowledgment(int seqNum, long ackTimestamp, boolean windowUpdate) {
+        // A reordered ack below the cumulative ack carries no news; it must not move
+        // lastAckNumber back (which would restart duplicate ACK counting)
+        if (seqNum < this.lastAckNumber) {
+            return;
         }
 
-        System.out.println("[DONE] Finished communicating with" + this.remoteAddress +"\nFinal statistics:");
-        System.out.println("Total Data Transferred: \t\t\t" + totalDataTransferred + " bytes");
-        System.out.println("Total Data Received: \t\t\t\t" + totalDataReceived + " bytes");
-        System.out.println("Total Packets Sent: \t\t\t\t" + totalPacketsSent + " packets");
-        System.out.println("Total Packets Received: \t\t\t" + totalPacketsReceived + " packets");
-        System.out.println("Total Packets Discarded Due To Checksum: \t" + totalPacketsWithIncorrectChecksum + " packets");
-        System.out.println("Total Number of Retransmissions: \t\t" + totalRetransmissions + " retransmits");
-        System.out.println("Total Duplicate Acknowledgements: \t\t" + totalDuplicateAcks + " ACKs");
-    }
+        // Karn's algorithm: no RTT sample when the ack covers a retransmitted segment
+        boolean retransmitted = this.window.coversRetransmission(seqNum);
 
-    // Method to output segment information
-    private void outputSegmentInfo(String action, String flagList, int sequenceNumber, int numBytes, int ackNumber) {
-        System.out.printf("%s %d %s %d %d %d\n", action, System.nanoTime(), flagList, sequenceNumber, numBytes,
-                ackNumber);
-    }
+        // Release every segment covered by the cumulative ack -- only touches acked slots
+        int numRemovals = this.window.advance(seqNum);
 
-    // Method to calculate timeout duration based on provided pseudo code
-    private void calculateTimeoutDuration(long ackTimestamp, boolean firstAck) {
-        synchronized (lock) {
-            long currentTime = System.nanoTime();
+        // New data acked: restart the timer for what is still in flight (RFC 6298 5.3)
+        if (numRemovals > 0 && !this.window.isEmpty()) {
+            armTimer(this.window.first());
+        }
 
-            if (firstAck) {
-                // First acknowledgment received
-                estimatedRTT = currentTime - ackTimestamp;
-                estimatedDeviation = 0;
-                timeoutDuration = (2 * estimatedRTT) / 1000000; // milliseconds
+        // Only acks of new data give RTT samples (the echoed timestamp is that of
+        // the oldest segment the receiver had not acknowledged yet)
+        long sampleRTT = -1;
+        if (numRemovals > 0 && !retransmitted) {
+            sampleRTT = System.nanoTime() - ackTimestamp;
+            this.rtt.addSample(sampleRTT);
+        }
+        if (numRemovals > 0) {
+            this.dupAckCount = 0;
+            if (!this.inRecovery) {
+                this.windowInflation = 0;
+                this.congestionController.onAck(numRemovals, sampleRTT);
+                // After a timeout, resend the rest of what was lost as the window grows
+                if (seqNum < this.recover) {
+                    resendLostSegments();
+                }
+            } else if (seqNum >= this.recover) {
+                // Full ack: everything in flight when the loss was detected has
+                // arrived, so deflate the window back to ssthresh
+                this.inRecovery = false;
+                this.windowInflation = 0;
             } else {
-                // Subsequent acknowledgments received
-                long sampleRTT = currentTime - ackTimestamp;
-                long deviation = Math.abs(sampleRTT - estimatedRTT);
-                estimatedRTT = (long) (ALPHA * estimatedRTT + (1 - ALPHA) * sampleRTT);
-                estimatedDeviation = (long) (BETA * estimatedDeviation + (1 - BETA) * deviation);
-                timeoutDuration = ((estimatedRTT + 4 * estimatedDeviation)) / 1000000; // milliseconds;
+                // Partial ack: the segment after the one we retransmitted was lost
+                // too -- retransmit it now instead of waiting for its timeout (unless
+                // a SACK hole already was), and deflate by the data acked, keeping
+                // room for the retransmission
+                this.windowInflation = Math.max(0, this.windowInflation - numRemovals + 1);
+                SendWindow.Slot oldest = this.window.first();
+                if (oldest != null && !oldest.sacked && oldest.attempts == 0) {
+                    resendPacket(oldest);
+                }
+            }
+        } else if (seqNum == this.lastAckNumber && !this.window.isEmpty() && !windowUpdate && this.peerWindow > 0) {
+            totalDuplicateAcks++;
+            this.dupAckCount++;
+            if (this.inRecovery || this.dupAckCount < DUP_ACK_THRESHOLD) {
+                // Another segment has left the network; let a new one take its place
+                // (before the threshold this is limited transmit, RFC 3042, which keeps
+                // enough duplicate ACKs coming for fast retransmit on small windows)
+                this.windowInflation++;
+            } else if (this.dupAckCount == DUP_ACK_THRESHOLD && seqNum >= this.recover) {
+                // Fast retransmit. Acks below recover belong to losses that were
+                // already handled (a timeout), so they do not start another recovery.
+                this.inRecovery = true;
+                this.recover = highestSent();
+                this.congestionController.onDuplicateAckLoss();
+                this.windowInflation = DUP_ACK_THRESHOLD;
+                // Retransmit every hole the receiver reported
+                resendMissingSegments();
             }
         }
-    }
-
-    private byte[] createHeader(int length, int afs) {
-        // seqnum and acknum are globals, get length and afs from cmd line
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-
-        try {
-            // Create a DataOutputStream to write data to the ByteArrayOutputStream
-            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-
-            // Write different data types to the byte array
-            dataOutputStream.writeInt(this.sequenceNumber);
-            dataOutputStream.writeInt(this.ackNumber);
-            dataOutputStream.writeLong(System.nanoTime());
-            // dataOutputStream.writeInt(length | (afs << 13));
-            dataOutputStream.writeInt((length << 3) | afs); // Corrected the order of bit shifting
-            dataOutputStream.writeInt(0);
-
-            // Close the DataOutputStream
-            dataOutputStream.close();
+        this.lastAckNumber = seqNum;
 
-            // Get the byte array
-            byte[] byteArray = byteArrayOutputStream.toByteArray();
-
-            int checksum = getChecksum(byteArray);
-
-            byteArray[22] = (byte) (checksum & 0xFF);
-            byteArray[23] = (byte) ((checksum >> 8) & 0xFF);
-
-            return byteArray;
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null; // is this fine?
+        if (this.pacer != null) {
+            this.pacer.setRate(this.rtt.srttNanos(), sendWindow());
         }
 
+        // Send queued packets into the space the ack opened up -- "adjust sliding window"
+        fillWindow();
     }
 
-    // Do we need to return as a short?
-    private int getChecksum(byte[] data) {
-        int sum = 0;
-        int carry = 0;
-
-        // Pad the data with 0x00 if the length is odd
-        byte[] paddedData = data.length % 2 == 0 ? data : Arrays.copyOf(data, data.length + 1);
+    // Number of segments allowed in flight: the congestion window (inflated
+    // during fast recovery), capped by -c and by the receiver's window
+    private int sendWindow() {
+        int cwnd = this.congestionController.window() + this.windowInflation;
+        return Math.min(Math.min(this.window.capacity(), this.peerWindow), cwnd);
+    }
 
-        // Calculate the sum of 16-bit segments
-        for (int i = 0; i < paddedData.length; i += 2) {
-            int segment = ((paddedData[i] & 0xFF) << 8) | (paddedData[i + 1] & 0xFF);
-            sum += segment;
-            if ((sum & 0xFFFF0000) != 0) {
-                sum &= 0xFFFF;
-                carry++;
-            }
-        }
+    // Segments that could still be sent once one more has gone out. Data
+    // segments carry it in their window field, and the receiver does not
+    // delay the ACK of a segment after which the sender has to wait for one.
+    private int roomAfterNext() {
+        return Math.max(0, sendWindow() - this.window.size() - 1);
+    }
 
-        // Add carry to the least significant bit
-        while (carry > 0) {
-            sum++;
-            if ((sum & 0xFFFF0000) != 0) {
-                sum &= 0xFFFF;
-                carry++;
-            } else {
-                break;
-            }
+    // Sequence number just past the newest segment sent
+    private int highestSent() {
+        if (this.window.isEmpty()) {
+            return this.lastAckNumber;
         }
-
-        // Flip all 16 bits to get the checksum
-        return ~sum & 0xFFFF;
+        SendWindow.Slot newest = this.window.get(this.window.size() - 1);
+        return newest.seqNum + newest.seqLen;
     }
 
-    private int extractSequenceNumber(byte[] header) {
-        return (header[0] & 0xFF) << 24 |
-                (header[1] & 0xFF) << 16 |
-                (header[2] & 0xFF) << 8 |
-                (header[3] & 0xFF);
+    // Send queued packets until the window is full (paced senders leave that to onTick)
+    private void fillWindow() {
+        if (this.pacer != null) {
+            return;
+        }
+        while (sendNextQueued()) {
+        }
     }
 
-    private int extractAcknowledgmentNumber(byte[] header) {
-        return (header[4] & 0xFF) << 24 |
-                (header[5] & 0xFF) << 16 |
-                (header[6] & 0xFF) << 8 |
-                (header[7] & 0xFF);
+    // Send the next queued packet if the window has room; returns whether one was sent
+    private boolean sendNextQueued() {
+        return sendNextQueued(false);
     }
 
-    private long extractTimestamp(byte[] header) {
-        return (long) (header[8] & 0xFF) << 56 |
-                (long) (header[9] & 0xFF) << 48 |
-                (long) (header[10] & 0xFF) << 40 |
-                (long) (header[11] & 0xFF) << 32 |
-                (long) (header[12] & 0xFF) << 24 |
-                (long) (header[13] & 0xFF) << 16 |
-                (long) (header[14] & 0xFF) << 8 |
-                (long) (header[15] & 0xFF);
+    // A zero-window probe goes out regardless of the window
+    private boolean sendNextQueued(boolean probe) {
+        if (!probe && this.window.size() >= sendWindow()) {
+            return false;
+        }
+        // Dequeue and send a packet
+        ByteBuffer payload = this.queuedPacekts.poll();
+        if (payload == null) {
+            return false;
+        }
+        int seqNum = this.queuedSeqNum;
+        this.queuedSeqNum += payload.remaining();
+        sendSegment(seqNum, payload, DATA | ACK);
+        return true;
     }
 
-    private int extractLength(byte[] header) {
-        return (header[16] & 0xFF) << 21 |
-                (header[17] & 0xFF) << 13 |
-                (header[18] & 0xFF) << 5 |
-                ((header[19] >> 3) & 0x1F);
-    }
+    // Retransmission timer fired for an in-flight segment
+    private void handleTimeout(SendWindow.Slot slot) {
+        if (!this.established) {
+            // The SYN (or its SYN-ACK) was lost: resend it with a doubled timeout
+            if (slot.attempts + 1 >= MAX_SYN_ATTEMPTS) {
+                System.err.println("Handshake Failed -- no SYN-ACK from receiver after " + MAX_SYN_ATTEMPTS + " SYNs.");
+                finish();
+                return;
+            }
+            this.rtt.backOff();
+            resendPacket(slot);
+            return;
+        }
 
-    private int extractChecksum(byte[] header) {
-        return (header[22] & 0xFF) << 8 |
-                (header[23] & 0xFF);
+        // The timer only runs for the oldest segment
+        if (slot != this.window.first()) {
+            return;
+        }
+        this.congestionController.onTimeout();
+        this.rtt.backOff();
+
+        // A timeout ends fast recovery; duplicate acks for what was in flight
+        // must not start another one
+        this.inRecovery = false;
+        this.windowInflation = 0;
+        this.dupAckCount = 0;
+        this.recover = highestSent();
+
+        // Everything in flight that the receiver has not SACKed is presumed lost.
+        // Only the oldest goes now (the window is down to one segment); the rest
+        // follow as ACKs open the window again.
+        for (int i = 0; i < this.window.size(); i++) {
+            SendWindow.Slot inFlight = this.window.get(i);
+            inFlight.lost = !inFlight.sacked;
+        }
+        resendLostSegments();
     }
 
-    private boolean extractACKFlag(byte[] header) {
-        return ((header[19]) & 0x1) == 1;
+    // Resend segments presumed lost by a timeout, oldest first, keeping no more
+    // than a congestion window's worth of them (and of those already resent) in flight
+    private void resendLostSegments() {
+        int budget = this.congestionController.window();
+        for (int i = 0; i < this.window.size() && budget > 0; i++) {
+            SendWindow.Slot slot = this.window.get(i);
+            if (slot.seqNum >= this.recover) {
+                break;
+            }
+            if (slot.sacked || slot.dead) {
+                continue;
+            }
+            if (slot.lost) {
+                resendPacket(slot);
+            }
+            budget--;
+        }
     }
 
-    private boolean extractFINFlag(byte[] header) {
-        return ((header[19] >> 1) & 0x1) == 1;
+    // Mark every in-flight segment covered by a SACK block so it is not
+    // retransmitted; only the slots inside the blocks are visited
+    private void processSackBlocks(SegmentCodec segment, int packetLength) {
+        int sackCount = segment.sackCount(packetLength);
+        for (int block = 0; block < sackCount; block++) {
+            int left = segment.sackLeft(block);
+            int right = segment.sackRight(block);
+            for (int i = this.window.indexOf(left); i < this.window.size(); i++) {
+                SendWindow.Slot slot = this.window.get(i);
+                if (slot.seqNum + slot.seqLen > right) {
+                    break;
+                }
+                if (!slot.sacked) {
+                    slot.sacked = true;
+                    // Released by the cumulative ack once the holes before it are filled
+                    slot.cancel();
+                }
+            }
+            if (right > this.highestSacked) {
+                this.highestSacked = right;
+            }
+        }
     }
 
-    private boolean extractSYNFlag(byte[] header) {
-        return ((header[19] >> 2) & 0x1) == 1;
+    // Retransmit the unacknowledged segments below the highest SACKed one
+    // (just the oldest segment if the receiver reported no SACK blocks)
+    private void resendMissingSegments() {
+        int end = Math.max(1, this.window.indexOf(this.highestSacked));
+        for (int i = 0; i < end && i < this.window.size(); i++) {
+            SendWindow.Slot slot = this.window.get(i);
+            if (!slot.sacked) {
+                resendPacket(slot);
+            }
+        }
     }
 
-    // Inner class representing a timer
-    public class Timer {
-        private final long timeout;
-        private long startTime;
-        private boolean dead = false;
-        // private TimerTask timerTask;
+    /*
+     * MISC.
+     */
 
-        public Timer(long timeout) {
-            this.timeout = timeout;
-            restart();
-        }
+    // The transfer is over: the loop thread releases the socket and file on
+    // its next tick, and awaitFinish() returns
+    private void finish() {
+        printStatistics();
 
-        public void restart() {
-            startTime = System.currentTimeMillis();
-        }
+        this.done = true;
+        this.finished.countDown();
+    }
 
-        public boolean hasExpired() {
-            return System.currentTimeMillis() - startTime >= timeout;
+    // Close the socket and file of a finished transfer
+    private void release() {
+        try {
+            this.transport.close();
+            if (this.source != null) {
+                this.source.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
 
-        public void markDead() {
-            this.dead = true;
-        }
+    // Method to close the connection and print statistics
+    private void printStatistics() {
+        System.out.println("[DONE] Finished communicating with" + this.remoteAddress +"\nFinal statistics:");
+        System.out.println("Total Data Transferred: \t\t\t" + totalDataTransferred + " bytes");
+        System.out.println("Total Data Received: \t\t\t\t" + totalDataReceived + " bytes");
+        System.out.println("Total Packets Sent: \t\t\t\t" + totalPacketsSent + " packets");
+        System.out.println("Total Packets Received: \t\t\t" + totalPacketsReceived + " packets");
+        System.out.println("Total Packets Discarded Due To Checksum: \t" + totalPacketsWithIncorrectChecksum + " packets");
+        System.out.println("Total Number of Retransmissions: \t\t" + totalRetransmissions + " retransmits");
+        System.out.println("Total Duplicate Acknowledgements: \t\t" + totalDuplicateAcks + " ACKs");
+    }
 
-        public boolean isDead() {
-            return this.dead;
+    // Method to output segment information. The flag column is only built as
+    // text for the printed log line.
+    private void outputSegmentInfo(String action, int flags, int sequenceNumber, int numBytes, int ackNumber) {
+        int flagBits = flags | (numBytes > 0 ? SegmentTrace.DATA : 0);
+        if (this.trace != null) {
+            int direction = action.equals("snd") ? SegmentTrace.SEND : SegmentTrace.RECEIVE;
+            this.trace.record(System.nanoTime(), direction, flagBits, sequenceNumber, numBytes, ackNumber);
+            return;
         }
-
-        // // Method to cancel the timer
-        // public void cancel() {
-        //     if (timerTask != null) {
-        //         timerTask.cancel();
-        //     }
-        // }
-
-        // // Method to schedule a task for the timer
-        // public void schedule(TimerTask task) {
-        //     this.timerTask = task;
-        //     new java.util.Timer().schedule(task, timeout);
-        // }
+        System.out.printf("%s %d %s %d %d %d\n", action, System.nanoTime(), SegmentTrace.flagList(flagBits),
+                sequenceNumber, numBytes, ackNumber);
     }
-
-}
\ No newline at end of file
+}
@@ -5,10 +5,10 @@ import java.util.*;
 public class TCPend {
     
     public static void main(String[] args){
-        if (args.length == 12){         // Sender
+        if (args.length >= 12 && args[2].equals("-s")){         // Sender
             if (!args[0].equals("-p") || !args[2].equals("-s") || !args[4].equals("-a")
                                       || !args[6].equals("-f") || !args[8].equals("-m") || !args[10].equals("-c")) {
-                System.out.println("Usage for sender: java TCPend -p <port> -s <remote IP> -a <remote port> -f <file name> -m <mtu> -c <sws>");
+                System.out.println("Usage for sender: java TCPend -p <port> -s <remote IP> -a <remote port> -f <file name> -m <mtu> -c <sws> [-z] [-cc reno|cubic] [-pace] [-loop <threads>] [-streams <n>] [-trace <file>]\n  (-streams needs a receiver started with -d)");
                 return;
             }
 
@@ -19,16 +19,106 @@ public class TCPend {
             int mtu = Integer.parseInt(args[9]);
             int sws = Integer.parseInt(args[11]);
 
-            Sender sender = new Sender(remotePort, remoteIP, port, fileName, mtu, sws);
+            // Optional flags
+            boolean zeroCopy = false;
+            boolean pacing = false;
+            String algorithm = "reno";
+            int loopThreads = 0;
+            int streams = 1;
+            String traceFile = null;
+            for (int i = 12; i < args.length; i++) {
+                if (args[i].equals("-z")) {
+                    // Send straight from a memory-mapped view of the file
+                    zeroCopy = true;
+                } else if (args[i].equals("-pace")) {
+                    // Space data segments at cwnd/SRTT
+                    pacing = true;
+                } else if (args[i].equals("-loop") && i + 1 < args.length) {
+                    // Run on a pool of event-loop threads instead of threads of its own
+                    loopThreads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-trace") && i + 1 < args.length) {
+                    // Log segments to a binary trace file (see TraceDecoder) instead of stdout
+                    traceFile = args[++i];
+                } else if (args[i].equals("-streams") && i + 1 < args.length) {
+                    // Stripe the file over several connections in parallel
+                    streams = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-cc") && i + 1 < args.length) {
+                    // Congestion control algorithm
+                    algorithm = args[++i];
+                    if (!algorithm.equals("reno") && !algorithm.equals("cubic")) {
+                        System.out.println("Unknown congestion control algorithm: " + algorithm);
+                        return;
+                    }
+                } else {
+                    System.out.println("Unknown sender option: " + args[i]);
+                    return;
+                }
+            }
+
+            SegmentTrace trace;
+            try {
+                trace = (traceFile == null) ? null : new SegmentTrace(traceFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            if (streams <= 1 && loopThreads <= 0) {
+                Sender sender = new Sender(port, remoteIP, remotePort, fileName, mtu, sws);
+                configure(sender, zeroCopy, pacing, algorithm, trace);
+
+                sender.start();
+                return;
+            }
+
+            // Split the file into one range of whole segments per stream. Stream i
+            // sends from local port port + i; the first port identifies the transfer.
+            List<Sender> senders = new ArrayList<Sender>();
+            if (streams <= 1) {
+                Sender sender = new Sender(port, remoteIP, remotePort, fileName, mtu, sws);
+                configure(sender, zeroCopy, pacing, algorithm, trace);
+                senders.add(sender);
+            } else {
+                long size = new File(fileName).length();
+                int segmentSize = mtu - SegmentCodec.HEADER_SIZE;
+                long segments = (size + segmentSize - 1) / segmentSize;
+                streams = (int) Math.max(1, Math.min(streams, segments));
+
+                long offset = 0;
+                for (int i = 0; i < streams; i++) {
+                    long stripeSegments = segments / streams + (i < segments % streams ? 1 : 0);
+                    long length = Math.min(stripeSegments * segmentSize, size - offset);
+
+                    Sender sender = new Sender(port + i, remoteIP, remotePort, fileName, mtu, sws);
+                    configure(sender, zeroCopy, pacing, algorithm, trace);
+                    sender.setStripe(offset, length, port);
+                    senders.add(sender);
+                    offset += length;
+                }
+            }
 
-            sender.start();
+            // Drive every stream from one event loop
+            try {
+                int threads = loopThreads > 0 ? loopThreads
+                        : Math.min(senders.size(), Runtime.getRuntime().availableProcessors());
+                EventLoop loop = new EventLoop(threads);
+                for (Sender sender : senders) {
+                    sender.start(loop);
+                }
+                for (Sender sender : senders) {
+                    sender.awaitFinish();
+                }
+                loop.shutdown();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
             // Set up socket inside Sender class, call method here to initiate data transfer
                 // Use DatagramSocket for UDP connection, does not create a stream
                 // https://www.baeldung.com/udp-in-java
         }
-        else if (args.length == 8){     // Receiver
+        else if (args.length >= 8 && args[2].equals("-m")){     // Receiver
             if (!args[0].equals("-p") || !args[2].equals("-m") || !args[4].equals("-c") || !args[6].equals("-f")) {
-                System.out.println("Usage for receiver: java TCPend -p <port> -m <mtu> -c <sws> -f <file name>");
+                System.out.println("Usage for receiver: java TCPend -p <port> -m <mtu> -c <sws> -f <file name> [-d] [-ackdelay <ms>] [-trace <file>]");
                 return;
             }
     
@@ -37,16 +127,71 @@ public class TCPend {
             int sws = Integer.parseInt(args[5]);
             String fileName = args[7];
 
-            Receiver receiver = new Receiver(port, mtu, sws, fileName);
+            // Optional flags
+            boolean daemon = false;
+            long ackDelayNanos = -1;
+            String traceFile = null;
+            for (int i = 8; i < args.length; i++) {
+                if (args[i].equals("-d")) {
+                    // Keep running and accept any number of concurrent transfers
+                    daemon = true;
+                } else if (args[i].equals("-ackdelay") && i + 1 < args.length) {
+                    // Longest time an ACK is held back, in ms; 0 acknowledges every segment at once
+                    ackDelayNanos = Long.parseLong(args[++i]) * 1000000;
+                } else if (args[i].equals("-trace") && i + 1 < args.length) {
+                    // Log segments to a binary trace file (see TraceDecoder) instead of stdout
+                    traceFile = args[++i];
+                } else {
+                    System.out.println("Unknown receiver option: " + args[i]);
+                    return;
+                }
+            }
+
+            SegmentTrace trace;
+            try {
+                trace = (traceFile == null) ? null : new SegmentTrace(traceFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            if (daemon) {
+                ReceiverServer server = new ReceiverServer(port, mtu, sws, fileName);
+                if (ackDelayNanos >= 0) {
+                    server.setAckDelay(ackDelayNanos);
+                }
+                server.setTrace(trace);
 
-            receiver.start();
+                server.start();
+            } else {
+                Receiver receiver = new Receiver(port, mtu, sws, fileName);
+                if (ackDelayNanos >= 0) {
+                    receiver.setAckDelay(ackDelayNanos);
+                }
+                receiver.setTrace(trace);
+
+                receiver.start();
+            }
 
             // Listen
         }
         else {                          // Invalid number of args
-            System.out.println("Usage for sender: java TCPend -p <port> -s <remote IP> -a <remote port> f <file name> -m <mtu> -c <sws>");
-            System.out.println("Usage for receiver: java TCPend -p <port> -m <mtu> -c <sws> -f <file name>");
+            System.out.println("Usage for sender: java TCPend -p <port> -s <remote IP> -a <remote port> -f <file name> -m <mtu> -c <sws> [-z] [-cc reno|cubic] [-pace] [-loop <threads>] [-streams <n>] [-trace <file>]\n  (-streams needs a receiver started with -d)");
+            System.out.println("Usage for receiver: java TCPend -p <port> -m <mtu> -c <sws> -f <file name> [-d] [-ackdelay <ms>] [-trace <file>]");
             return;
         }
     }
+
+    // Apply the optional sender flags
+    private static void configure(Sender sender, boolean zeroCopy, boolean pacing, String algorithm,
+            SegmentTrace trace) {
+        sender.setZeroCopy(zeroCopy);
+        sender.setTrace(trace);
+        sender.setPacing(pacing);
+        if (algorithm.equals("cubic")) {
+            sender.setCongestionController(new CubicController());
+        } else {
+            sender.setCongestionController(new RenoController());
+        }
+    }
 }
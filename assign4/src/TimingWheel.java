@@ -0,0 +1,170 @@
+// Hierarchical timing wheel for retransmission timeouts.
+// Four levels of 64 buckets each; level 0 holds timeouts due within the next
+// 64 ticks, and each higher level covers 64x the range of the one below it.
+// Arming and cancelling a timeout are O(1) list splices, and advancing the
+// wheel only touches buckets that are actually due (plus an occasional cascade
+// of a higher-level bucket into the levels below).
+// Not thread safe -- callers are expected to hold their own lock.
+public class TimingWheel {
+    private static final int LEVELS = 4;
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+    private static final int MASK = BUCKETS - 1;
+    private static final long MAX_TICKS = (1L << (LEVELS * BITS)) - 1;
+
+    // Callback for timeouts that have come due
+    public interface Handler {
+        void expired(Timeout timeout);
+    }
+
+    // A timeout that can be armed on (at most) one wheel at a time.
+    // Instances are meant to be reused, so arming does not allocate.
+    public static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private TimingWheel wheel;
+        private long deadline;  // In ticks
+
+        public void cancel() {
+            if (this.wheel != null) {
+                this.wheel.unlink(this);
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final long originNanos;
+    private final Timeout[][] buckets = new Timeout[LEVELS][BUCKETS];
+    private long currentTick = 0;
+    private long nextEventTick = Long.MAX_VALUE;
+    private int size = 0;
+
+    public TimingWheel(long tickNanos, long nowNanos) {
+        this.tickNanos = Math.max(1, tickNanos);
+        this.originNanos = nowNanos;
+        // Each bucket is a circular list headed by a sentinel
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                Timeout sentinel = new Timeout();
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                this.buckets[level][i] = sentinel;
+            }
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // Arm (or re-arm) a timeout to fire delayNanos from nowNanos.
+    // Returns true if it is due before the wheel's next planned event, i.e. a
+    // thread sleeping until nanosUntilNextEvent() must be woken up early.
+    public boolean schedule(Timeout timeout, long delayNanos, long nowNanos) {
+        timeout.cancel();
+        long ticks = (nowNanos - this.originNanos + Math.max(0, delayNanos) + this.tickNanos - 1) / this.tickNanos;
+        timeout.deadline = Math.min(Math.max(ticks, this.currentTick + 1), this.currentTick + MAX_TICKS);
+        timeout.wheel = this;
+        this.size++;
+        insert(timeout);
+
+        if (timeout.deadline < this.nextEventTick) {
+            this.nextEventTick = timeout.deadline;
+            return true;
+        }
+        return false;
+    }
+
+    // Move the wheel forward to nowNanos, firing every timeout that is due.
+    // The handler may re-arm the timeout it is given.
+    public void advance(long nowNanos, Handler handler) {
+        long targetTick = (nowNanos - this.originNanos) / this.tickNanos;
+        if (this.size == 0) {
+            this.currentTick = Math.max(this.currentTick, targetTick);
+            return;
+        }
+        while (this.currentTick < targetTick) {
+            this.currentTick++;
+            cascade();
+
+            Timeout sentinel = this.buckets[0][(int) (this.currentTick & MASK)];
+            while (sentinel.next != sentinel) {
+                Timeout timeout = sentinel.next;
+                unlink(timeout);
+                handler.expired(timeout);
+            }
+            if (this.size == 0) {
+                this.currentTick = targetTick;
+            }
+        }
+    }
+
+    // Milliseconds to wait (for a millisecond-resolution wait such as
+    // Selector.select()) before advance() has work: at least 1 if anything is
+    // armed, or 0 if the wheel is empty
+    public long millisUntilNextEvent(long nowNanos) {
+        long nanos = nanosUntilNextEvent(nowNanos);
+        return nanos < 0 ? 0 : Math.max(1, (nanos + 999999) / 1000000);
+    }
+
+    // Time until the next bucket that needs attention (a due bucket or a
+    // cascade), or -1 if the wheel is empty
+    public long nanosUntilNextEvent(long nowNanos) {
+        if (this.size == 0) {
+            this.nextEventTick = Long.MAX_VALUE;
+            return -1;
+        }
+        long tick = this.currentTick + 1;
+        long boundary = (this.currentTick | MASK) + 1;
+        while (tick < boundary && this.buckets[0][(int) (tick & MASK)].next == this.buckets[0][(int) (tick & MASK)]) {
+            tick++;
+        }
+        this.nextEventTick = tick;
+        return Math.max(0, this.originNanos + tick * this.tickNanos - nowNanos);
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadline - this.currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << ((level + 1) * BITS))) {
+            level++;
+        }
+        Timeout sentinel = this.buckets[level][(int) ((timeout.deadline >> (level * BITS)) & MASK)];
+        timeout.prev = sentinel.prev;
+        timeout.next = sentinel;
+        sentinel.prev.next = timeout;
+        sentinel.prev = timeout;
+    }
+
+    // When a lower level wraps around, redistribute the matching bucket of the
+    // level above into finer-grained buckets
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((this.currentTick & ((1L << (level * BITS)) - 1)) != 0) {
+                return;
+            }
+            Timeout sentinel = this.buckets[level][(int) ((this.currentTick >> (level * BITS)) & MASK)];
+            Timeout timeout = sentinel.next;
+            sentinel.next = sentinel;
+            sentinel.prev = sentinel;
+            while (timeout != sentinel) {
+                Timeout next = timeout.next;
+                insert(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        this.size--;
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.*;
+
+// Prints a binary trace file written by SegmentTrace (TCPend -trace) in the
+// text format senders and receivers log by default:
+//
+//   java TraceDecoder <trace file>
+public class TraceDecoder {
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java TraceDecoder <trace file>");
+            return;
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+            if (in.readInt() != SegmentTrace.MAGIC) {
+                System.out.println("Not a TCPend trace file: " + args[0]);
+                return;
+            }
+            int version = in.readInt();
+            if (version != SegmentTrace.VERSION) {
+                System.out.println("Unsupported trace file version: " + version);
+                return;
+            }
+
+            while (true) {
+                long timestamp;
+                try {
+                    timestamp = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int sequenceNumber = in.readInt();
+                int length = in.readInt();
+                int ackNumber = in.readInt();
+                int direction = in.readByte();
+                int flags = in.readByte();
+                in.readShort();
+
+                out.printf("%s %d %s %d %d %d\n", direction == SegmentTrace.SEND ? "snd" : "rcv", timestamp,
+                        SegmentTrace.flagList(flags), sequenceNumber, length, ackNumber);
+            }
+        } catch (EOFException e) {
+            out.println("Trace file ends in the middle of a record: " + args[0]);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out.flush();
+    }
+}
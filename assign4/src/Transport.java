@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// Non-blocking UDP transport shared by Sender and Receiver. Datagrams are
+// received into a direct buffer that is allocated once, and every wakeup
+// drains all datagrams that are ready instead of one per call.
+// The transport's own selector (used by await() and receive()) is only
+// opened on first use, and is closed once the transport is registered with
+// an external selector, so transports driven by an EventLoop do not hold one.
+public class Transport {
+    // Called once per received datagram; the buffer is only valid for the
+    // duration of the call (position 0, limit = datagram length)
+    public interface Handler {
+        void handle(ByteBuffer datagram, InetSocketAddress from);
+    }
+
+    private final DatagramChannel channel;
+    private Selector selector;
+    private final ByteBuffer receiveBuffer;
+    private InetSocketAddress lastSource;
+
+    public Transport(InetSocketAddress local, int maxDatagramSize) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(local);
+        this.channel.configureBlocking(false);
+        this.receiveBuffer = ByteBuffer.allocateDirect(maxDatagramSize);
+    }
+
+    public Transport(int port, int maxDatagramSize) throws IOException {
+        this(new InetSocketAddress(port), maxDatagramSize);
+    }
+
+    // Only exchange datagrams with one peer (required for gathering sends)
+    public void connect(SocketAddress remote) throws IOException {
+        this.channel.connect(remote);
+    }
+
+    // Register for reads with an external selector (e.g. an EventLoop thread's).
+    // From then on the external selector drives the transport: the transport's
+    // own selector, if await() or receive() opened one, is closed.
+    public SelectionKey register(Selector selector, Object attachment) throws IOException {
+        if (this.selector != null) {
+            this.selector.close();
+            this.selector = null;
+        }
+        return this.channel.register(selector, SelectionKey.OP_READ, attachment);
+    }
+
+    public int getLocalPort() {
+        return this.channel.socket().getLocalPort();
+    }
+
+    // Send header and payload as one datagram without joining them first;
+    // the buffers are rewound afterwards so they can be sent again
+    public void send(ByteBuffer[] packet) throws IOException {
+        this.channel.write(packet);
+        for (ByteBuffer buffer : packet) {
+            buffer.rewind();
+        }
+    }
+
+    // Send the buffer's remaining bytes to the given address; the buffer is
+    // rewound afterwards so it can be sent again
+    public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+        this.channel.send(packet, target);
+        packet.rewind();
+    }
+
+    // Block until at least one datagram is ready. Returns false if none
+    // arrived within timeoutMillis (0 waits forever).
+    public boolean await(long timeoutMillis) throws IOException {
+        if (this.selector == null) {
+            this.selector = Selector.open();
+            this.channel.register(this.selector, SelectionKey.OP_READ);
+        }
+        int ready = this.selector.select(timeoutMillis);
+        this.selector.selectedKeys().clear();
+        return ready > 0;
+    }
+
+    // Hand every datagram that is ready to the handler without blocking.
+    // Returns the number of datagrams processed.
+    public int drain(Handler handler) throws IOException {
+        int count = 0;
+        while (true) {
+            this.receiveBuffer.clear();
+            SocketAddress from = this.channel.receive(this.receiveBuffer);
+            if (from == null) {
+                return count;
+            }
+            this.receiveBuffer.flip();
+            handler.handle(this.receiveBuffer, (InetSocketAddress) from);
+            count++;
+        }
+    }
+
+    // Receive a single datagram, waiting up to timeoutMillis (0 waits forever).
+    // Returns the receive buffer (valid until the next receive) or null on timeout.
+    public ByteBuffer receive(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            this.receiveBuffer.clear();
+            SocketAddress from = this.channel.receive(this.receiveBuffer);
+            if (from != null) {
+                this.receiveBuffer.flip();
+                this.lastSource = (InetSocketAddress) from;
+                return this.receiveBuffer;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (timeoutMillis > 0 && remaining <= 0) {
+                return null;
+            }
+            await(timeoutMillis > 0 ? remaining : 0);
+        }
+    }
+
+    // Address the last datagram returned by receive() came from
+    public InetSocketAddress getLastSource() {
+        return this.lastSource;
+    }
+
+    public void close() throws IOException {
+        if (this.selector != null) {
+            this.selector.close();
+        }
+        this.channel.close();
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Write-behind stage for received data. write() copies a payload into a
+// pooled buffer and queues it; a dedicated writer thread does the actual
+// file writes, so a slow disk never holds up packet handling (and ACKs).
+// The writer takes everything that is queued at once and turns each run of
+// writes that continue one another in the same file into a single gathering
+// write. The queue is bounded: if the disk falls that far behind, write()
+// blocks until the writer catches up. One stage can serve any number of
+// OutputFiles. Connections sharing a stage each write through a Quota, an
+// even share of the queue; a connection that keeps its writes within its
+// quota never makes write() block, whatever the other connections do.
+public class WriteBehind {
+    private static final int MAX_GATHER = 64;   // Buffers per gathering write
+
+    // A queued write; no data means "close the file" once the writes before it are done
+    private static class Write {
+        final OutputFile file;
+        final long position;
+        final ByteBuffer data;
+        final Quota quota;
+
+        Write(OutputFile file, long position, ByteBuffer data, Quota quota) {
+            this.file = file;
+            this.position = position;
+            this.data = data;
+            this.quota = quota;
+        }
+    }
+
+    // One writer's (e.g. one connection's) share of the queue: the queue's
+    // capacity split evenly between the open quotas
+    public class Quota {
+        private final AtomicInteger pending = new AtomicInteger();  // Queued, not yet taken by the writer thread
+        private boolean closed = false;
+
+        // Number of writes that can still be queued within this quota
+        public int remaining() {
+            int share = Math.max(1, capacity / Math.max(1, quotas.get()));
+            return Math.max(0, share - this.pending.get());
+        }
+
+        // Give this quota's share back to the other writers
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                quotas.decrementAndGet();
+            }
+        }
+    }
+
+    private final int bufferSize;
+    private final int capacity;
+    private final AtomicInteger quotas = new AtomicInteger();   // Open quotas
+    private final BlockingQueue<Write> queue;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // bufferSize is the usual payload size (one segment); queueCapacity the
+    // number of writes that may be pending before write() blocks
+    public WriteBehind(int bufferSize, int queueCapacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = Math.max(1, queueCapacity);
+        this.queue = new ArrayBlockingQueue<Write>(this.capacity);
+
+        Thread writerThread = new Thread(this::run, "write-behind");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Open a share of the queue for a new writer
+    public Quota openQuota() {
+        this.quotas.incrementAndGet();
+        return new Quota();
+    }
+
+    // Queue a copy of src's remaining bytes to be written at the given file
+    // offset, counted against the writer's quota
+    public void write(OutputFile file, ByteBuffer src, long position, Quota quota) throws IOException {
+        ByteBuffer data = this.pool.poll();
+        if (data == null || data.capacity() < src.remaining()) {
+            data = ByteBuffer.allocateDirect(Math.max(this.bufferSize, src.remaining()));
+        }
+        data.clear();
+        data.put(src);
+        data.flip();
+        quota.pending.incrementAndGet();
+        enqueue(new Write(file, position, data, quota));
+    }
+
+    // Close the file once every write queued for it so far is done
+    public void close(OutputFile file) throws IOException {
+        enqueue(new Write(file, 0, null, null));
+    }
+
+    private void enqueue(Write write) throws IOException {
+        try {
+            this.queue.put(write);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the write-behind queue");
+        }
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<Write>();
+        ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        while (true) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            this.queue.drainTo(batch);
+            // The batch is out of the queue: its writes no longer count against their quotas
+            for (Write write : batch) {
+                if (write.quota != null) {
+                    write.quota.pending.decrementAndGet();
+                }
+            }
+
+            int i = 0;
+            while (i < batch.size()) {
+                Write first = batch.get(i);
+                if (first.data == null) {
+                    first.file.closeNow();
+                    i++;
+                    continue;
+                }
+
+                // Gather the run of writes that each start where the previous one ended
+                int count = 0;
+                long end = first.position;
+                int j = i;
+                while (j < batch.size() && count < MAX_GATHER) {
+                    Write next = batch.get(j);
+                    if (next.data == null || next.file != first.file || next.position != end) {
+                        break;
+                    }
+                    gather[count++] = next.data;
+                    end += next.data.remaining();
+                    j++;
+                }
+
+                try {
+                    first.file.writeNow(gather, count, first.position);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                for (int k = 0; k < count; k++) {
+                    this.pool.add(gather[k]);
+                }
+                i = j;
+            }
+
+            batch.clear();
+            Arrays.fill(gather, null);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -110,5 +111,30 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a raw Ethernet frame out a specific interface.
+	 * @param frame the frame, from its position to its limit; up to 24 bytes
+	 * 		  in front of it in its array may be overwritten
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, Iface iface)
+	{ return this.vnsComm.sendFrame(frame, iface.getName()); }
+	
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface, before 
+	 * it is parsed. Devices may override this to process common packets 
+	 * directly on the frame's bytes; by default every frame is parsed and 
+	 * passed to handlePacket.
+	 * @param frame the Ethernet frame that was received, from position 0 to
+	 * 		  its limit; it may be modified and sent on with sendFrame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed 
+	 * 		   and passed to handlePacket (in which case it must not have 
+	 * 		   been modified)
+	 */
+	public boolean handleFrame(ByteBuffer frame, Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
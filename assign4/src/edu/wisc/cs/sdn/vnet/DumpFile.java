@@ -4,6 +4,7 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
 
@@ -78,16 +79,38 @@ public class DumpFile
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
+		this.dump(buf, 0, buf.length);
+	}
+	
+	/**
+	 * Log a raw Ethernet frame, from its position to its limit.
+	 */
+	public void dump(ByteBuffer frame)
+	{
+		if (frame.hasArray())
+		{
+			this.dump(frame.array(), frame.arrayOffset() + frame.position(),
+					frame.remaining());
+		}
+		else
+		{
+			byte[] buf = new byte[frame.remaining()];
+			frame.duplicate().get(buf);
+			this.dump(buf, 0, buf.length);
+		}
+	}
+	
+	private void dump(byte[] buf, int offset, int length)
+	{
 		int sec = (int)(System.currentTimeMillis()/1000);
 		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
 		try
 		{
 			this.outStream.writeInt(sec);
 			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.writeInt(length);
+			this.outStream.writeInt(length);
+			this.outStream.write(buf, offset, length);
 			this.outStream.flush();
 		}
 		catch (IOException e)
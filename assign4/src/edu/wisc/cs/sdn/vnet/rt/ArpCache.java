@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,6 +21,9 @@ public class ArpCache {
 	/** Entries in the cache; maps an IP address to an entry */
 	private Map<Integer,ArpEntry> entries;
 
+	/** Incremented by every change to the cache */
+	private final AtomicLong generation = new AtomicLong();
+
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
@@ -33,7 +37,17 @@ public class ArpCache {
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{
+		this.entries.put(ip, new ArpEntry(mac, ip));
+		this.generation.incrementAndGet();
+	}
+
+	/**
+	 * @return a number that changes whenever the cache changes, for 
+	 *         invalidating results derived from it
+	 */
+	public long getGeneration()
+	{ return this.generation.get(); }
 
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
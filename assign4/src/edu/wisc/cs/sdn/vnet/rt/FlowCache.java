@@ -0,0 +1,117 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * A small cache of forwarding decisions, keyed by destination IP address,
+ * so packets of the same flow skip the route table and ARP cache lookups.
+ * The cache is direct-mapped with a fixed number of slots; a destination
+ * that hashes to an occupied slot simply replaces the flow stored there.
+ * Each flow remembers the route table and ARP cache generations it was
+ * resolved against, and is ignored once either of them has changed.
+ * Flows are immutable, so the cache may be read and filled from any thread.
+ */
+public class FlowCache
+{
+	/** Default number of slots */
+	public static final int DEFAULT_SIZE = 1024;
+
+	/** A resolved destination */
+	public static class Flow
+	{
+		private final int dstIp;
+		private final Iface outIface;
+		private final MACAddress nextHopMac;
+		private final long routeGeneration;
+		private final long arpGeneration;
+
+		private Flow(int dstIp, Iface outIface, MACAddress nextHopMac,
+				long routeGeneration, long arpGeneration)
+		{
+			this.dstIp = dstIp;
+			this.outIface = outIface;
+			this.nextHopMac = nextHopMac;
+			this.routeGeneration = routeGeneration;
+			this.arpGeneration = arpGeneration;
+		}
+
+		/**
+		 * @return interface packets to the destination are sent out of
+		 */
+		public Iface getOutIface()
+		{ return this.outIface; }
+
+		/**
+		 * @return MAC address of the next hop towards the destination
+		 */
+		public MACAddress getNextHopMac()
+		{ return this.nextHopMac; }
+	}
+
+	/** Cached flows, indexed by a hash of the destination IP address */
+	private final Flow[] slots;
+
+	/** Number of slots minus one, for indexing */
+	private final int mask;
+
+	/**
+	 * Create an empty cache with the default number of slots.
+	 */
+	public FlowCache()
+	{ this(DEFAULT_SIZE); }
+
+	/**
+	 * Create an empty cache.
+	 * @param size number of slots, rounded up to a power of two
+	 */
+	public FlowCache(int size)
+	{
+		int slotCount = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+		this.slots = new Flow[slotCount];
+		this.mask = slotCount - 1;
+	}
+
+	/**
+	 * Find the cached flow for a destination.
+	 * @param dstIp destination IP address
+	 * @param routeGeneration current generation of the route table
+	 * @param arpGeneration current generation of the ARP cache
+	 * @return the flow, or null if it is not cached or is out of date
+	 */
+	public Flow lookup(int dstIp, long routeGeneration, long arpGeneration)
+	{
+		Flow flow = this.slots[index(dstIp)];
+		if (null == flow || flow.dstIp != dstIp
+				|| flow.routeGeneration != routeGeneration
+				|| flow.arpGeneration != arpGeneration)
+		{ return null; }
+		return flow;
+	}
+
+	/**
+	 * Cache the forwarding decision for a destination.
+	 * @param dstIp destination IP address
+	 * @param outIface interface to send packets out of
+	 * @param nextHopMac MAC address of the next hop
+	 * @param routeGeneration route table generation the route was found in
+	 * @param arpGeneration ARP cache generation the next hop was found in
+	 * @return the cached flow
+	 */
+	public Flow insert(int dstIp, Iface outIface, MACAddress nextHopMac,
+			long routeGeneration, long arpGeneration)
+	{
+		Flow flow = new Flow(dstIp, outIface, nextHopMac, routeGeneration,
+				arpGeneration);
+		this.slots[index(dstIp)] = flow;
+		return flow;
+	}
+
+	private int index(int dstIp)
+	{
+		// Spread the host bits, which vary most between destinations
+		int hash = dstIp * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & this.mask;
+	}
+}
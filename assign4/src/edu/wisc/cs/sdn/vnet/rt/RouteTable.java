@@ -4,7 +4,8 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -14,19 +15,76 @@ import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * Route table for a router.
+ * Route table for a router. The forwarding path never locks: lookups read
+ * the current snapshot, an immutable binary trie over destination prefixes 
+ * (so a lookup walks at most 32 nodes no matter how many routes there are) 
+ * and the list of entries it was built from. Changes are serialized among 
+ * themselves and build the next snapshot next to the current one, copying 
+ * only the trie path to the changed prefix, then publish it with a single 
+ * volatile write.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/**
+	 * An immutable node of the prefix trie. The node at depth d stands for 
+	 * the d-bit prefix spelled by the path to it.
+	 */
+	private static class Node
+	{
+		/** Children for a next bit of 0 and 1 */
+		private final Node[] children;
+
+		/** Route for exactly this prefix, null if none */
+		private final RouteEntry entry;
+
+		private Node(Node[] children, RouteEntry entry)
+		{
+			this.children = children;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * A version of the route table; never changed once published.
+	 */
+	private static class Snapshot
+	{
+		/** Root of the prefix trie (the 0-bit prefix), null if empty */
+		private final Node root;
+
+		/** Entries in the route table, in the order they were added */
+		private final List<RouteEntry> entries;
+
+		/** Version number, one more than the previous snapshot's */
+		private final long generation;
+
+		private Snapshot(Node root, List<RouteEntry> entries, long generation)
+		{
+			this.root = root;
+			this.entries = Collections.unmodifiableList(entries);
+			this.generation = generation;
+		}
+	}
+
+	/** Current version of the route table */
+	private volatile Snapshot snapshot;
+
+	/** Serializes changes to the route table */
+	private final Object updateLock = new Object();
 
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this.snapshot = new Snapshot(null, new ArrayList<RouteEntry>(), 0); }
+
+	/**
+	 * @return a number that changes whenever the route table changes, for 
+	 *         invalidating results derived from lookups
+	 */
+	public long getGeneration()
+	{ return this.snapshot.generation; }
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,26 +93,21 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
+		// Follow the address bits down the trie; the deepest route seen on 
+		// the way is the longest prefix match
+		Node node = this.snapshot.root;
+		RouteEntry bestMatch = null;
+		int bit = 31;
+		while (null != node)
 		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
-			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
-			}
-
-			return bestMatch;
-
-			/*****************************************************************/
+			if (null != node.entry)
+			{ bestMatch = node.entry; }
+			if (bit < 0)
+			{ break; }
+			node = node.children[(ip >>> bit) & 1];
+			bit--;
 		}
+		return bestMatch;
 	}
 
 	/**
@@ -159,9 +212,18 @@ public class RouteTable
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-		synchronized(this.entries)
+		synchronized(this.updateLock)
 		{ 
-			this.entries.add(entry);
+			Snapshot current = this.snapshot;
+			List<RouteEntry> entries = new ArrayList<RouteEntry>(current.entries);
+			entries.add(entry);
+
+			// The first route added for a prefix is the one used
+			Node root = current.root;
+			if (null == findPrefix(current.entries, dstIp, maskIp))
+			{ root = with(root, dstIp, prefixLength(maskIp), 0, entry); }
+
+			this.snapshot = new Snapshot(root, entries, current.generation + 1);
 		}
 	}
 
@@ -173,17 +235,30 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
+		synchronized(this.updateLock)
 		{
+			Snapshot current = this.snapshot;
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
-			this.entries.remove(entry);
+			List<RouteEntry> entries = new ArrayList<RouteEntry>(current.entries);
+			entries.remove(entry);
+
+			// Fall back to any other route for the same prefix
+			Node root = current.root;
+			if (findPrefix(current.entries, dstIp, maskIp) == entry)
+			{
+				root = with(root, dstIp, prefixLength(maskIp), 0, 
+						findPrefix(entries, dstIp, maskIp));
+			}
+
+			this.snapshot = new Snapshot(root, entries, current.generation + 1);
 		}
 		return true;
 	}
 
 	/**
-	 * Update an entry in the route table.
+	 * Update an entry in the route table. The entry is replaced rather than
+	 * changed, since lookups may be using it.
 	 * @param dstIP destination IP of the entry to update
 	 * @param maskIp subnet mask of the entry to update
 	 * @param gatewayAddress new gateway IP address for matching entry
@@ -192,12 +267,21 @@ public class RouteTable
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
 	{
-		synchronized(this.entries)
+		synchronized(this.updateLock)
 		{
+			Snapshot current = this.snapshot;
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
+			RouteEntry updated = new RouteEntry(entry.getDestinationAddress(), 
+					gwIp, entry.getMaskAddress(), iface);
+			List<RouteEntry> entries = new ArrayList<RouteEntry>(current.entries);
+			entries.set(entries.indexOf(entry), updated);
+
+			Node root = current.root;
+			if (findPrefix(current.entries, dstIp, maskIp) == entry)
+			{ root = with(root, dstIp, prefixLength(maskIp), 0, updated); }
+
+			this.snapshot = new Snapshot(root, entries, current.generation + 1);
 		}
 		return true;
 	}
@@ -210,29 +294,82 @@ public class RouteTable
 	 */
 	private RouteEntry find(int dstIp, int maskIp)
 	{
-		synchronized(this.entries)
+		for (RouteEntry entry : this.snapshot.entries)
 		{
-			for (RouteEntry entry : this.entries)
-			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
-			}
+			if ((entry.getDestinationAddress() == dstIp)
+				&& (entry.getMaskAddress() == maskIp)) 
+			{ return entry; }
 		}
 		return null;
 	}
 
-	public String toString()
+	/**
+	 * Find the first entry in a list of entries for the same prefix as a 
+	 * destination and mask.
+	 * @param entries route entries to search
+	 * @param dstIp destination IP
+	 * @param maskIp subnet mask
+	 * @return the first entry for the prefix if there is one, otherwise null
+	 */
+	private static RouteEntry findPrefix(List<RouteEntry> entries, int dstIp, 
+			int maskIp)
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
+		for (RouteEntry entry : entries)
+		{
+			if ((entry.getMaskAddress() == maskIp)
+				&& ((entry.getDestinationAddress() & maskIp) == (dstIp & maskIp)))
+			{ return entry; }
+		}
+		return null;
+	}
+
+	/**
+	 * Length of the prefix a subnet mask selects. Masks are compared as 
+	 * unsigned values, so only the leading one bits count.
+	 * @param maskIp subnet mask
+	 * @return the number of leading one bits in the mask
+	 */
+	private static int prefixLength(int maskIp)
+	{ return Integer.numberOfLeadingZeros(~maskIp); }
 
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
+	/**
+	 * Copy of a trie with the route for one prefix replaced. Only the nodes 
+	 * on the path to the prefix are copied; the rest are shared with the 
+	 * original, and nodes left without a route or children are dropped.
+	 * @param node root of the (sub)trie to copy, may be null
+	 * @param prefix destination IP of the prefix
+	 * @param length length of the prefix
+	 * @param depth depth of node in the whole trie
+	 * @param entry new route for the prefix, null to remove it
+	 * @return root of the new (sub)trie, null if it is empty
+	 */
+	private static Node with(Node node, int prefix, int length, int depth, 
+			RouteEntry entry)
+	{
+		Node[] children = (null == node) ? new Node[2] : node.children.clone();
+		RouteEntry nodeEntry = (null == node) ? null : node.entry;
+		if (depth == length)
+		{ nodeEntry = entry; }
+		else
+		{
+			int bit = (prefix >>> (31 - depth)) & 1;
+			children[bit] = with(children[bit], prefix, length, depth + 1, entry);
 		}
+
+		if (null == nodeEntry && null == children[0] && null == children[1])
+		{ return null; }
+		return new Node(children, nodeEntry);
+	}
+
+	public String toString()
+	{
+		List<RouteEntry> entries = this.snapshot.entries;
+		if (0 == entries.size())
+		{ return " WARNING: route table empty"; }
+
+		String result = "Destination\tGateway\t\tMask\t\tIface\n";
+		for (RouteEntry entry : entries)
+		{ result += entry.toString()+"\n"; }
+		return result;
 	}
 }
@@ -1,9 +1,12 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.nio.ByteBuffer;
+
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
 
+import net.floodlightcontroller.packet.Checksum;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 
@@ -12,12 +15,24 @@ import net.floodlightcontroller.packet.IPv4;
  */
 public class Router extends Device
 {	
+	/** Offsets of the fields the fast path reads and writes in a raw frame */
+	private static final int ETH_DST = 0;
+	private static final int ETH_SRC = 6;
+	private static final int ETH_TYPE = 12;
+	private static final int IP_HEADER = 14;
+	private static final int IP_TTL = IP_HEADER + 8;
+	private static final int IP_CHECKSUM = IP_HEADER + 10;
+	private static final int IP_DST = IP_HEADER + 16;
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
+	/** Recent forwarding decisions, by destination IP address */
+	private FlowCache flowCache;
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -27,6 +42,7 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
+		this.flowCache = new FlowCache();
 	}
 
 	/**
@@ -73,6 +89,73 @@ public class Router extends Device
 		System.out.println("----------------------------------");
 	}
 
+	/**
+	 * Forward an IPv4 frame by rewriting it in place, without parsing it 
+	 * into packet objects. Frames this does not handle (anything other than
+	 * untagged IPv4, and packets addressed to the router itself) are left 
+	 * untouched for handlePacket.
+	 * @param frame the Ethernet frame that was received, from position 0
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was forwarded or dropped
+	 */
+	@Override
+	public boolean handleFrame(ByteBuffer frame, Iface inIface)
+	{
+		// Only the common case: an IPv4 frame with a complete header
+		if (null == inIface || frame.limit() < IP_HEADER + 20
+				|| frame.getShort(ETH_TYPE) != Ethernet.TYPE_IPv4)
+		{ return false; }
+		int versionAndLength = frame.get(IP_HEADER);
+		int headerLength = (versionAndLength & 0xf) * 4;
+		if ((versionAndLength & 0xf0) != 0x40 || headerLength < 20
+				|| frame.limit() < IP_HEADER + headerLength)
+		{ return false; }
+
+		// Leave packets for the router to the object model
+		int dstAddr = frame.getInt(IP_DST);
+		if (this.isRouterAddress(dstAddr))
+		{ return false; }
+
+		// Verify checksum, over the header only
+		if (Checksum.compute(frame, IP_HEADER, headerLength) != 0)
+		{ return true; }
+
+		// Check TTL
+		short oldWord = frame.getShort(IP_TTL);
+		short newWord = (short)(oldWord - 0x100);
+		if (0 == (newWord & 0xff00))
+		{ return true; }
+
+		FlowCache.Flow flow = this.resolve(dstAddr);
+		if (null == flow)
+		{ return true; }
+
+		// Make sure we don't sent a packet back out the interface it came in
+		Iface outIface = flow.getOutIface();
+		if (outIface == inIface)
+		{ return true; }
+
+		if (this.dropRandomly())
+		{ return true; }
+
+		// Decrement TTL, update the checksum to match, and set MAC addresses
+		int checksum = frame.getShort(IP_CHECKSUM) & 0xffff;
+		frame.putShort(IP_TTL, newWord);
+		frame.putShort(IP_CHECKSUM, 
+				(short)Checksum.update(checksum, oldWord, newWord));
+		putMac(frame, ETH_DST, flow.getNextHopMac().toLong());
+		putMac(frame, ETH_SRC, outIface.getMacAddress().toLong());
+
+		this.sendFrame(frame, outIface);
+		return true;
+	}
+
+	private static void putMac(ByteBuffer frame, int offset, long mac)
+	{
+		frame.putShort(offset, (short)(mac >>> 32));
+		frame.putInt(offset + 2, (int)mac);
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -107,29 +190,17 @@ public class Router extends Device
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		System.out.println("Handle IP packet");
 
-		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
+		// Verify checksum, over the header only
+		if (!ipPacket.isChecksumValid())
 		{ return; }
 
-		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
-		if (0 == ipPacket.getTtl())
+		// Check TTL; decrementing it also updates the checksum
+		if (0 == ipPacket.decrementTtl())
 		{ return; }
 
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
-
 		// Check if packet is destined for one of router's interfaces
-		for (Iface iface : this.interfaces.values())
-		{
-			if (ipPacket.getDestinationAddress() == iface.getIpAddress())
-			{ return; }
-		}
+		if (this.isRouterAddress(ipPacket.getDestinationAddress()))
+		{ return; }
 
 		// Do route lookup and forward
 		this.forwardIpPacket(etherPacket, inIface);
@@ -146,39 +217,87 @@ public class Router extends Device
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int dstAddr = ipPacket.getDestinationAddress();
 
-		// Find matching route table entry 
-		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
-
-		// If no entry matched, do nothing
-		if (null == bestMatch)
+		// Find the route and next hop, doing nothing if there are none
+		FlowCache.Flow flow = this.resolve(dstAddr);
+		if (null == flow)
 		{ return; }
 
 		// Make sure we don't sent a packet back out the interface it came in
-		Iface outIface = bestMatch.getInterface();
+		Iface outIface = flow.getOutIface();
 		if (outIface == inIface)
 		{ return; }
 
-		// Set source MAC address in Ethernet header
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		// Set source and destination MAC addresses in Ethernet header
+		etherPacket.setSourceMAC(outIface.getMacAddress());
+		etherPacket.setDestinationMAC(flow.getNextHopMac());
+
+		if (this.dropRandomly())
+		{ return; }
+
+		this.sendPacket(etherPacket, outIface);
+	}
+
+	/**
+	 * @return true if the address belongs to one of the router's interfaces
+	 */
+	private boolean isRouterAddress(int ip)
+	{
+		for (Iface iface : this.interfaces.values())
+		{
+			if (ip == iface.getIpAddress())
+			{ return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Find the interface and next hop MAC address to forward packets for a
+	 * destination to, from the flow cache or else the route table and ARP
+	 * cache.
+	 * @param dstAddr destination IP address
+	 * @return the flow, or null if there is no route or next hop MAC address
+	 */
+	private FlowCache.Flow resolve(int dstAddr)
+	{
+		// Read the generations before any lookup, so a flow resolved while 
+		// either table changes is cached as already out of date
+		long routeGeneration = this.routeTable.getGeneration();
+		long arpGeneration = this.arpCache.getGeneration();
+		FlowCache.Flow flow = this.flowCache.lookup(dstAddr, routeGeneration,
+				arpGeneration);
+		if (null != flow)
+		{ return flow; }
+
+		// Find matching route table entry 
+		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		if (null == bestMatch)
+		{ return null; }
 
 		// If no gateway, then nextHop is IP destination
 		int nextHop = bestMatch.getGatewayAddress();
 		if (0 == nextHop)
 		{ nextHop = dstAddr; }
 
-		// Set destination MAC address in Ethernet header
+		// Find the next hop's MAC address
 		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
 		if (null == arpEntry)
-		{ return; }
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+		{ return null; }
 
+		return this.flowCache.insert(dstAddr, bestMatch.getInterface(),
+				arpEntry.getMac(), routeGeneration, arpGeneration);
+	}
+
+	/**
+	 * @return true if a packet should be dropped, which happens to 5% of them
+	 */
+	private boolean dropRandomly()
+	{
 		double rand = Math.random();
 		// dropping a pakcet with 5% probablity
 		if (rand < 0.05) {
 			System.out.println("Randomly dropping a packet");
-			return;
+			return true;
 		}
-
-		this.sendPacket(etherPacket, outIface);
+		return false;
 	}
 }
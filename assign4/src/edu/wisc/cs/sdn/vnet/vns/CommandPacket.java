@@ -6,6 +6,9 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Bytes before the Ethernet frame: length, type, and interface name */
+	protected static final int HEADER_SIZE = 8 + 16;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -30,6 +33,38 @@ public class CommandPacket extends Command
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
+	/**
+	 * @return the name of the interface in a serialized packet command
+	 */
+	protected static String interfaceName(ByteBuffer buf)
+	{ return new String(buf.array(), 8, 16).trim(); }
+	
+	/**
+	 * @return the Ethernet frame in a serialized packet command, sharing its
+	 *         bytes, with the command header in front of it in the array
+	 */
+	protected static ByteBuffer frame(ByteBuffer buf)
+	{ 
+		return ByteBuffer.wrap(buf.array(), HEADER_SIZE, 
+				buf.capacity() - HEADER_SIZE).slice(); 
+	}
+	
+	/**
+	 * Write the header of a packet command for a frame of the given length
+	 * into data at offset.
+	 */
+	protected static void putHeader(byte[] data, int offset, int frameLength,
+			String ifaceName)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, HEADER_SIZE);
+		bb.putInt(HEADER_SIZE + frameLength);
+		bb.putInt(Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		bb.put(name);
+		for (int i = name.length; i < 16; i++)
+		{ bb.put((byte)0); }
+	}
+	
 	protected byte[] serialize()
 	{
 		byte[] packet = this.etherPacket.serialize();
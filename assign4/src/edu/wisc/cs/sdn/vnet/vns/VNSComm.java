@@ -190,16 +190,20 @@ public class VNSComm
 		switch(command)
 		{
 		case Command.VNS_PACKET:
+			// Offer the raw frame to the device first
+			ByteBuffer frame = CommandPacket.frame(buf);
+			Iface inIface = this.device.getInterface(
+					CommandPacket.interfaceName(buf));
+			if (this.device.getLogFile() != null)
+			{ this.device.getLogFile().dump(frame); }
+			if (this.device.handleFrame(frame, inIface))
+			{ break; }
+			
 			CommandPacket cmdPkt = new CommandPacket();
 			cmdPkt.deserialize(buf);
 			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.device.handlePacket(cmdPkt.etherPacket, inIface);
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -273,4 +277,48 @@ public class VNSComm
 		}
 		return true;
 	}
+	
+	/**
+	 * Send a raw Ethernet frame, from its position to its limit. A frame 
+	 * handed to Device.handleFrame has room for the command header in front
+	 * of it, so it is sent from its own array without copying; the bytes in
+	 * front of any other frame may be overwritten the same way.
+	 */
+	public boolean sendFrame(ByteBuffer frame, String ifaceName)
+	{
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame); }
+		
+		int length = frame.remaining();
+		byte[] buf;
+		int offset;
+		if (frame.hasArray() && !frame.isReadOnly() && frame.arrayOffset() 
+				+ frame.position() >= CommandPacket.HEADER_SIZE)
+		{
+			buf = frame.array();
+			offset = frame.arrayOffset() + frame.position() 
+					- CommandPacket.HEADER_SIZE;
+		}
+		else
+		{
+			buf = new byte[CommandPacket.HEADER_SIZE + length];
+			offset = 0;
+			frame.duplicate().get(buf, CommandPacket.HEADER_SIZE, length);
+		}
+		CommandPacket.putHeader(buf, offset, length, ifaceName);
+		
+	    try
+		{
+			OutputStream outStream = socket.getOutputStream();
+			outStream.write(buf, offset, CommandPacket.HEADER_SIZE + length);
+            outStream.flush();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
 }
@@ -0,0 +1,130 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Internet checksum (RFC 1071) helpers shared by the packet serializers and
+ * the TCPend sender and receiver.
+ *
+ * A checksum is built in two steps: one or more calls to add() accumulate an
+ * unfolded one's complement sum in a long, and finish() folds it to 16 bits
+ * and complements it. Data is consumed eight bytes at a time; each 64-bit
+ * word is split into two 32-bit halves, which keeps every 16-bit column
+ * aligned and leaves the carries in the upper bits until the final fold.
+ * An odd trailing byte is padded with 0x00 in place, without copying.
+ *
+ * Buffers are read in big-endian (network) order regardless of their
+ * configured byte order.
+ */
+public final class Checksum {
+
+    private Checksum() {
+    }
+
+    /**
+     * Add length bytes of data starting at the given absolute offset to a
+     * running sum. The buffer's position and limit are not changed.
+     * @param sum the running sum (0 to start a new checksum)
+     * @param data the buffer to read from
+     * @param offset absolute offset of the first byte
+     * @param length number of bytes to add
+     * @return the new running sum
+     */
+    public static long add(long sum, ByteBuffer data, int offset, int length) {
+        boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            long word = data.getLong(i);
+            if (!bigEndian)
+                word = Long.reverseBytes(word);
+            sum += (word >>> 32) + (word & 0xffffffffL);
+        }
+        if (i + 4 <= end) {
+            int word = data.getInt(i);
+            if (!bigEndian)
+                word = Integer.reverseBytes(word);
+            sum += word & 0xffffffffL;
+            i += 4;
+        }
+        if (i + 2 <= end) {
+            sum += ((data.get(i) & 0xff) << 8) | (data.get(i + 1) & 0xff);
+            i += 2;
+        }
+        // pad an odd trailing byte with 0x00
+        if (i < end) {
+            sum += (data.get(i) & 0xff) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Add length bytes of an array starting at offset to a running sum.
+     * @see #add(long, ByteBuffer, int, int)
+     */
+    public static long add(long sum, byte[] data, int offset, int length) {
+        return add(sum, ByteBuffer.wrap(data), offset, length);
+    }
+
+    /**
+     * Add a 32-bit value (e.g. an address in a pseudo header) to a running sum.
+     */
+    public static long add(long sum, int value) {
+        return sum + (value & 0xffffffffL);
+    }
+
+    /**
+     * Fold a running sum into 16 bits, adding the carries back in.
+     */
+    public static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /**
+     * @return the checksum for a running sum, i.e. its folded complement
+     */
+    public static int finish(long sum) {
+        return ~fold(sum) & 0xffff;
+    }
+
+    /**
+     * Compute the checksum of length bytes of data starting at offset.
+     */
+    public static int compute(ByteBuffer data, int offset, int length) {
+        return finish(add(0, data, offset, length));
+    }
+
+    /**
+     * Compute the checksum of length bytes of an array starting at offset.
+     */
+    public static int compute(byte[] data, int offset, int length) {
+        return finish(add(0, data, offset, length));
+    }
+
+    /**
+     * Incrementally update a checksum after a 16-bit aligned 16-bit field
+     * changed from oldValue to newValue (RFC 1624, eqn. 3), without summing
+     * the rest of the data again.
+     * @return the updated checksum
+     */
+    public static int update(int checksum, short oldValue, short newValue) {
+        long sum = (~checksum & 0xffff) + (~oldValue & 0xffff) + (newValue & 0xffff);
+        return finish(sum);
+    }
+
+    /**
+     * Incrementally update a checksum after a 16-bit aligned 64-bit field
+     * (e.g. a timestamp) changed from oldValue to newValue.
+     * @see #update(int, short, short)
+     */
+    public static int update(int checksum, long oldValue, long newValue) {
+        long sum = (~checksum & 0xffff)
+                + (0xffff - fold(add(add(0, (int) (oldValue >>> 32)), (int) oldValue)))
+                + fold(add(add(0, (int) (newValue >>> 32)), (int) newValue));
+        return finish(sum);
+    }
+}
@@ -91,6 +91,15 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set; MACAddress
+     *        is immutable, so it is shared rather than copied
+     */
+    public Ethernet setDestinationMAC(MACAddress destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress;
+        return this;
+    }
+
     /**
      * @return the source MACAddress as a byte array
      */
@@ -121,6 +130,15 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param sourceMACAddress the source MAC to set; MACAddress is
+     *        immutable, so it is shared rather than copied
+     */
+    public Ethernet setSourceMAC(MACAddress sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress;
+        return this;
+    }
+
     /**
      * @return the priorityCode
      */
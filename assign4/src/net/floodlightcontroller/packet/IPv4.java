@@ -180,6 +180,19 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    /**
+     * Decrement the ttl by one and adjust the checksum to match
+     * incrementally (RFC 1624), without summing the header again.
+     * @return the new ttl
+     */
+    public byte decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.checksum = (short) Checksum.update(this.checksum & 0xffff, oldWord, newWord);
+        return this.ttl;
+    }
+
     /**
      * @return the protocol
      */
@@ -215,6 +228,26 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Verify the header checksum. Only the header fields are summed; the
+     * payload is not serialized.
+     * @return true if the checksum matches the header
+     */
+    public boolean isChecksumValid() {
+        long sum = ((this.version & 0xf) << 12) | ((this.headerLength & 0xf) << 8)
+                | (this.diffServ & 0xff);
+        sum += this.totalLength & 0xffff;
+        sum += this.identification & 0xffff;
+        sum += ((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff);
+        sum += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        sum += this.checksum & 0xffff;
+        sum = Checksum.add(sum, this.sourceAddress);
+        sum = Checksum.add(sum, this.destinationAddress);
+        if (this.options != null)
+            sum = Checksum.add(sum, this.options, 0, this.options.length);
+        return Checksum.finish(sum) == 0;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -321,14 +354,7 @@ public class IPv4 extends BasePacket {
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-            for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = (short) Checksum.compute(data, 0, this.headerLength * 4);
             bb.putShort(10, this.checksum);
         }
         return data;
@@ -130,31 +130,19 @@ public class UDP extends BasePacket {
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
+            long accumulation = 0;
 
             // compute pseudo header mac
             if (this.parent != null && this.parent instanceof IPv4) {
                 IPv4 ipv4 = (IPv4) this.parent;
-                accumulation += ((ipv4.getSourceAddress() >> 16) & 0xffff)
-                        + (ipv4.getSourceAddress() & 0xffff);
-                accumulation += ((ipv4.getDestinationAddress() >> 16) & 0xffff)
-                        + (ipv4.getDestinationAddress() & 0xffff);
+                accumulation = Checksum.add(accumulation, ipv4.getSourceAddress());
+                accumulation = Checksum.add(accumulation, ipv4.getDestinationAddress());
                 accumulation += ipv4.getProtocol() & 0xff;
                 accumulation += this.length & 0xffff;
             }
 
-            for (int i = 0; i < this.length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (this.length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
-            }
-
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            accumulation = Checksum.add(accumulation, data, 0, this.length & 0xffff);
+            this.checksum = (short) Checksum.finish(accumulation);
             bb.putShort(6, this.checksum);
         }
         return data;